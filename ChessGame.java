@@ -1,10 +1,71 @@
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.GridLayout;
+import java.awt.Image;
+import java.awt.MediaTracker;
+import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntBinaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.logging.Logger;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JMenu;
+import javax.swing.JMenuBar;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 
@@ -14,6 +75,20 @@ public class ChessGame {
     private boolean whiteTurn;
     private JFrame frame;
     private JButton[][] squares;
+    private ImageIcon[] pieceIcons;
+    // what each square currently shows, so repaints only touch squares that changed
+    private Piece[][] renderedPieces;
+    private Color[][] renderedColors;
+    // legal moves for the side to move, computed off the EDT after every position change
+    private ExecutorService analysisExecutor;
+    private int positionVersion;
+    private LegalMoves legalMoves;
+    private Position pendingClick;
+    // multi-PV analysis of the human's position, run while they think and served as hints
+    private ExecutorService ponderExecutor;
+    private ChessGame ponderGame;
+    private Analysis latestAnalysis;
+    private boolean hintRequested;
     private Position selectedPiece;
     private List<Position> possibleMoves;
     private boolean gameOver;
@@ -22,19 +97,103 @@ public class ChessGame {
     private volatile boolean aiThinking;
     private Position enPassantTarget;
     private boolean[] castlingRights = {true, true, true, true};
+    private EvalParams evalParams;
+    private SearchStats searchStats = new SearchStats(0);
+    private long searchDeadline;
+    private volatile boolean searchCancelled;
+    // triangular principal variation table, indexed by ply
+    private Move[][] pvTable;
+    private int[] pvLength;
+    // move ordering: two killer moves per ply, and the best line of the last search
+    // from this position, whose moves are tried first while the search is still on it
+    private Move[][] killers;
+    private Move[] previousPv;
+    private long previousPvKey;
+    private boolean followPv;
+    private AnalysisStore analysisStore;
+
+    // game record: starting FEN (null for the standard start), moves played and the PGN result
+    private String startFen;
+    private List<Move> moveHistory = new ArrayList<>();
+    private String result = "*";
+    private int halfmoveClock;
+    private int fullmoveNumber = 1;
+    private PieceType pendingPromotion;
 
 
 
     
     
     private static final int AI_DEPTH = 3;
+    private static final int HINT_LINES = 3;
+    private static final int ANALYSIS_CACHE_ENTRIES = 200_000;
+    private static final long ANALYSIS_CACHE_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(180);
+    private static final ForkJoinPool SEARCH_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int SQUARE_SIZE = 80;
+    private static final int ICON_SIZE = 64;
+    private static final Color LIGHT_SQUARE = new Color(240, 217, 181);
+    private static final Color DARK_SQUARE = new Color(181, 136, 99);
+    private static final Logger LOG = Logger.getLogger(ChessGame.class.getName());
+
+    private static final long[][] ZOBRIST_PIECES = new long[12][BOARD_SIZE * BOARD_SIZE];
+    private static final long[] ZOBRIST_CASTLING = new long[4];
+    private static final long[] ZOBRIST_EN_PASSANT = new long[BOARD_SIZE];
+    private static final long ZOBRIST_WHITE_TO_MOVE;
+
+    static {
+        // fixed seed so keys are stable across runs
+        Random random = new Random(0x43484553534C4F4EL);
+        for (long[] squareKeys : ZOBRIST_PIECES) {
+            for (int i = 0; i < squareKeys.length; i++) squareKeys[i] = random.nextLong();
+        }
+        for (int i = 0; i < ZOBRIST_CASTLING.length; i++) ZOBRIST_CASTLING[i] = random.nextLong();
+        for (int i = 0; i < ZOBRIST_EN_PASSANT.length; i++) ZOBRIST_EN_PASSANT[i] = random.nextLong();
+        ZOBRIST_WHITE_TO_MOVE = random.nextLong();
+    }
+
+    private static final Pattern PGN_TAG = Pattern.compile("\\[(\\w+)\\s+\"((?:[^\"\\\\]|\\\\.)*)\"\\]");
+
+    /*
+     * Binary game record: a 6 byte header (magic "CG", version, result,
+     * unsigned 16-bit ply count) followed by one 16-bit word per move:
+     * from square (6 bits), to square (6 bits), promotion piece (3 bits,
+     * PieceType ordinal, 0 for none). Records are self-delimiting, so any
+     * number of them can be appended to one stream.
+     */
+    private static final int RECORD_MAGIC = ('C' << 8) | 'G';
+    private static final int RECORD_VERSION = 1;
+    private static final String[] RECORD_RESULTS = {"*", "1-0", "0-1", "1/2-1/2"};
 
     public ChessGame() {
+        this(true, EvalParams.DEFAULTS);
+    }
+
+    // headless games (withGui == false) are used by the tournament runner and the tuner
+    private ChessGame(boolean withGui, EvalParams evalParams) {
+        this.evalParams = evalParams;
+        initializeBoard();
+        whiteTurn = true;
+        gameOver = false;
+        if (withGui) {
+            analysisStore = AnalysisStore.openQuietly(Paths.get(System.getProperty("chess.analysisCache",
+                    Paths.get(System.getProperty("user.home"), ".chessgame", "analysis.cache").toString())));
+            analysisExecutor = Executors.newSingleThreadExecutor(daemonThreads("legal-moves"));
+            ponderExecutor = Executors.newSingleThreadExecutor(daemonThreads("ponder"));
+            createGUI();
+            positionChanged();
+        }
+    }
+
+    private void resetPosition() {
         initializeBoard();
+        Arrays.fill(castlingRights, true);
         whiteTurn = true;
         gameOver = false;
-        createGUI();
-        if (whiteTurn) aiMove();
+        startFen = null;
+        moveHistory.clear();
+        result = "*";
+        halfmoveClock = 0;
+        fullmoveNumber = 1;
     }
 
 
@@ -83,6 +242,9 @@ public class ChessGame {
         frame.setLayout(new GridLayout(BOARD_SIZE, BOARD_SIZE));
         
         squares = new JButton[BOARD_SIZE][BOARD_SIZE];
+        renderedPieces = new Piece[BOARD_SIZE][BOARD_SIZE];
+        renderedColors = new Color[BOARD_SIZE][BOARD_SIZE];
+        pieceIcons = loadPieceIcons();
         possibleMoves = new ArrayList<>();
         
         for (int row = 0; row < BOARD_SIZE; row++) {
@@ -91,15 +253,10 @@ public class ChessGame {
                 final int c = col;
                 
                 squares[row][col] = new JButton();
-                squares[row][col].setPreferredSize(new Dimension(80, 80));
+                squares[row][col].setPreferredSize(new Dimension(SQUARE_SIZE, SQUARE_SIZE));
                 squares[row][col].setOpaque(true);
                 squares[row][col].setBorderPainted(false);
-                
-                if ((row + col) % 2 == 0) {
-                    squares[row][col].setBackground(new Color(240, 217, 181));
-                } else {
-                    squares[row][col].setBackground(new Color(181, 136, 99));
-                }
+                setSquareBackground(row, col, baseColor(row, col));
                 
                 squares[row][col].addActionListener(e -> {
                     if (!aiThinking && !gameOver) {
@@ -111,18 +268,241 @@ public class ChessGame {
             }
         }
         
+        frame.setJMenuBar(createMenuBar());
         updateBoard();
         frame.pack();
         frame.setVisible(true);
     }
 
+    private JMenuBar createMenuBar() {
+        JMenu gameMenu = new JMenu("Game");
+        
+        JMenuItem save = new JMenuItem("Save...");
+        save.addActionListener(e -> saveGame());
+        gameMenu.add(save);
+        
+        JMenuItem load = new JMenuItem("Load...");
+        load.addActionListener(e -> loadGame());
+        gameMenu.add(load);
+        
+        gameMenu.addSeparator();
+        JMenuItem hint = new JMenuItem("Hint");
+        hint.addActionListener(e -> showHint());
+        gameMenu.add(hint);
+        
+        JMenuBar menuBar = new JMenuBar();
+        menuBar.add(gameMenu);
+        return menuBar;
+    }
+
+    // the file extension picks the format: .pgn, .fen or .cgr (binary game record)
+    private void saveGame() {
+        if (aiThinking) return; // the AI searches on the live board
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+        
+        File file = chooser.getSelectedFile();
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (!name.endsWith(".pgn") && !name.endsWith(".fen") && !name.endsWith(".cgr")) {
+            file = new File(file.getPath() + ".pgn");
+            name = file.getName();
+        }
+        
+        try {
+            if (name.endsWith(".cgr")) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+                    writeRecord(out);
+                }
+            } else {
+                String text = name.endsWith(".fen") ? toFen() + "\n" : toPgn();
+                Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException | IllegalStateException e) {
+            JOptionPane.showMessageDialog(frame, "Could not save game: " + e.getMessage());
+        }
+    }
+
+    private void loadGame() {
+        if (aiThinking) return;
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+        
+        Path path = chooser.getSelectedFile().toPath();
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        try {
+            if (name.endsWith(".cgr")) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                    if (!readRecord(in)) throw new IOException("No game record in file");
+                }
+            } else if (name.endsWith(".fen")) {
+                loadFen(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            } else {
+                loadPgn(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(frame, "Could not load game: " + e.getMessage());
+            resetPosition();
+        }
+        
+        clearSelection();
+        gameOver = !result.equals("*");
+        if (gameOver) {
+            frame.setTitle("Chess Game - game over (" + result + ")");
+        } else {
+            frame.setTitle("Chess Game - " + (whiteTurn ? "AI (White)" : "Human (Black)") + "'s turn");
+        }
+        positionChanged();
+    }
+
+    // call on the EDT whenever the position or side to move changes
+    private void positionChanged() {
+        int version = ++positionVersion;
+        legalMoves = null;
+        hintRequested = false;
+        if (ponderGame != null) {
+            ponderGame.searchCancelled = true;
+            ponderGame = null;
+        }
+        if (gameOver) return;
+        
+        ChessGame snapshot = copyPosition();
+        CompletableFuture.supplyAsync(() -> snapshot.computeLegalMoves(version), analysisExecutor)
+                .whenComplete((moves, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                        JOptionPane.showMessageDialog(frame, "Error finding legal moves: " + error.getMessage());
+                    } else {
+                        legalMovesReady(moves);
+                    }
+                }));
+    }
+
+    private LegalMoves computeLegalMoves(int version) {
+        Map<Position, List<Position>> moves = new HashMap<>();
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = board[row][col];
+                if (piece != null && piece.isWhite() == whiteTurn) {
+                    Position from = new Position(row, col);
+                    List<Position> destinations = getValidMoves(from);
+                    if (!destinations.isEmpty()) moves.put(from, destinations);
+                }
+            }
+        }
+        return new LegalMoves(version, isInCheck(whiteTurn), moves);
+    }
+
+    private void legalMovesReady(LegalMoves moves) {
+        if (moves.version != positionVersion || gameOver) return;
+        legalMoves = moves;
+        
+        String side = whiteTurn ? "AI (White)" : "Human (Black)";
+        if (moves.byOrigin.isEmpty()) {
+            gameOver = true;
+            if (moves.inCheck) {
+                result = whiteTurn ? "0-1" : "1-0";
+                String winner = whiteTurn ? "Human (Black)" : "AI (White)";
+                JOptionPane.showMessageDialog(frame, "Checkmate! " + winner + " wins!");
+                frame.setTitle("Chess Game - " + winner + " wins!");
+            } else {
+                result = "1/2-1/2";
+                JOptionPane.showMessageDialog(frame, "Stalemate! " + side + " has no legal moves.");
+                frame.setTitle("Chess Game - Draw by stalemate");
+            }
+            return;
+        }
+        if (moves.inCheck) {
+            JOptionPane.showMessageDialog(frame, side + " is in check!");
+        }
+        
+        if (whiteTurn) {
+            pendingClick = null;
+            aiMove();
+            return;
+        }
+        startPonder(moves.version);
+        if (pendingClick != null) {
+            Position click = pendingClick;
+            pendingClick = null;
+            handleSquareClick(click.row, click.col);
+        }
+    }
+
+    private void startPonder(int version) {
+        long key = zobristKey();
+        if (latestAnalysis != null && latestAnalysis.key == key) return;
+        
+        ChessGame snapshot = copyPosition();
+        ponderGame = snapshot;
+        ponderExecutor.execute(() -> {
+            List<RootLine> lines;
+            try {
+                lines = snapshot.analyze(AI_DEPTH);
+            } catch (SearchAborted e) {
+                return;
+            }
+            Analysis analysis = new Analysis(key, lines);
+            SwingUtilities.invokeLater(() -> {
+                if (version != positionVersion) return;
+                latestAnalysis = analysis;
+                if (hintRequested) {
+                    hintRequested = false;
+                    showHint();
+                }
+            });
+        });
+    }
+
+    // served from the ponder analysis; if that is still running the hint appears when it finishes
+    private void showHint() {
+        if (gameOver || aiThinking || whiteTurn) return;
+        if (latestAnalysis == null || latestAnalysis.key != zobristKey()) {
+            hintRequested = true;
+            frame.setTitle("Chess Game - preparing hint...");
+            return;
+        }
+        
+        List<RootLine> lines = latestAnalysis.lines;
+        if (lines.isEmpty()) return;
+        
+        GameTree variations = new GameTree(this);
+        StringBuilder message = new StringBuilder("Suggested moves:\n");
+        double pawn = evalParams.pieceValues[PieceType.PAWN.ordinal()];
+        for (int i = 0; i < Math.min(HINT_LINES, lines.size()); i++) {
+            RootLine line = lines.get(i);
+            int score = whiteTurn ? line.score : -line.score;
+            message.append(String.format("%d. %s  (%+.1f)%n", i + 1, formatLine(variations, line.pv), score / pawn));
+        }
+        frame.setTitle("Chess Game - Human (Black)'s turn");
+        
+        Move best = lines.get(0).move;
+        selectedPiece = best.from;
+        possibleMoves = legalMoves != null ? legalMoves.from(best.from) : new ArrayList<>();
+        highlightPossibleMoves();
+        JOptionPane.showMessageDialog(frame, message.toString(), "Hint", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private String formatLine(GameTree variations, List<Move> pv) {
+        ChessGame replay = new ChessGame(false, evalParams);
+        GameTree.Node node = variations.root;
+        StringBuilder line = new StringBuilder();
+        for (Move move : pv) {
+            if (line.length() > 0) line.append(' ');
+            replay.restore(node.position);
+            line.append(replay.toSan(move));
+            node = variations.play(node, move);
+        }
+        return line.toString();
+    }
+
     private void aiMove() {
         aiThinking = true;
         frame.setTitle("Chess Game - AI thinking...");
         
         new Thread(() -> {
             try {
-                Move bestMove = findBestMove(AI_DEPTH);
+                Move bestMove = findBestMoveParallel(AI_DEPTH, SEARCH_POOL);
+                LOG.info(searchStats.summary());
                 
                 SwingUtilities.invokeLater(() -> {
                     try {
@@ -132,23 +512,14 @@ public class ChessGame {
                             
                             if (capturedPiece != null && capturedPiece.getType() == PieceType.KING) {
                                 gameOver = true;
+                                result = "1-0";
                                 JOptionPane.showMessageDialog(frame, "King captured! AI (White) wins!");
                                 frame.setTitle("Chess Game - AI (White) wins!");
                                 return;
                             }
                             
-                            boolean isCheck = isInCheck(false);
-                            boolean isCheckmate = isCheck && isCheckmate(false);
-                            
-                            if (isCheckmate) {
-                                gameOver = true;
-                                JOptionPane.showMessageDialog(frame, "Checkmate! AI (White) wins!");
-                                frame.setTitle("Chess Game - AI (White) wins!");
-                            } else if (isCheck) {
-                                JOptionPane.showMessageDialog(frame, "Human (Black) is in check!");
-                            }
-                            
                             whiteTurn = !whiteTurn;
+                            positionChanged();
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -176,6 +547,12 @@ public class ChessGame {
       private void handleSquareClick(int row, int col) {
         if (aiThinking || gameOver) return;
         
+        // answered once the background legal move computation finishes
+        if (legalMoves == null) {
+            pendingClick = new Position(row, col);
+            return;
+        }
+        
         try {
             Position clickedPos = new Position(row, col);
             
@@ -183,22 +560,7 @@ public class ChessGame {
                 Piece piece = board[row][col];
                 if (piece != null && piece.isWhite() == whiteTurn) {
                     selectedPiece = clickedPos;
-                    possibleMoves = getValidMoves(selectedPiece);
-                    
-                    
-                    if (isInCheck(whiteTurn)) {
-                        List<Position> legalMoves = new ArrayList<>();
-                        for (Position move : possibleMoves) {
-                            Piece[][] tempBoard = copyBoard();
-                            makeMoveOnBoard(selectedPiece, move, tempBoard);
-                            Position kingPos = whiteTurn ? whiteKingPosition : blackKingPosition;
-                            if (!isSquareUnderAttack(kingPos, !whiteTurn, tempBoard)) {
-                                legalMoves.add(move);
-                            }
-                        }
-                        possibleMoves = legalMoves;
-                    }
-                    
+                    possibleMoves = legalMoves.from(selectedPiece);
                     highlightPossibleMoves();
                 }
             } else {
@@ -211,36 +573,20 @@ public class ChessGame {
                     
                     if (capturedPiece != null && capturedPiece.getType() == PieceType.KING) {
                         gameOver = true;
+                        result = whiteTurn ? "1-0" : "0-1";
                         String winner = whiteTurn ? "Human (Black)" : "AI (White)";
                         JOptionPane.showMessageDialog(frame, "King captured! " + winner + " wins!");
                         frame.setTitle("Chess Game - " + winner + " wins!");
                         return;
                     }
                     
-                  
-                    boolean isCheck = isInCheck(!whiteTurn);
-                    boolean isCheckmate = isCheck && isCheckmate(!whiteTurn);
-                    
-                    if (isCheckmate) {
-                        gameOver = true;
-                        String winner = whiteTurn ? "AI (White)" : "Human (Black)";
-                        JOptionPane.showMessageDialog(frame, "Checkmate! " + winner + " wins!");
-                        frame.setTitle("Chess Game - " + winner + " wins!");
-                    } else if (isCheck) {
-                        JOptionPane.showMessageDialog(frame, 
-                            (whiteTurn ? "Human (Black)" : "AI (White)") + " is in check!");
-                    }
-                    
                     whiteTurn = !whiteTurn;
-                    
-                    if (whiteTurn && !gameOver) {
-                        aiMove();
-                    }
+                    positionChanged();
                 } else {
                     Piece piece = board[row][col];
                     if (piece != null && piece.isWhite() == whiteTurn) {
                         selectedPiece = clickedPos;
-                        possibleMoves = getValidMoves(selectedPiece);
+                        possibleMoves = legalMoves.from(selectedPiece);
                         highlightPossibleMoves();
                     }
                 }
@@ -253,61 +599,272 @@ public class ChessGame {
     }
 
     private Move findBestMove(int depth) {
-        List<Move> allMoves = generateAllMoves(true); 
-        Move bestMove = null;
-        int bestValue = Integer.MIN_VALUE;
+        Move stored = probeAnalysisStore(depth);
+        if (stored != null) return stored;
+        
+        RootLine best = analyze(depth).get(0);
+        saveToAnalysisStore(best.move, best.score, depth);
+        return best.move;
+    }
+
+    /**
+     * Searches every root move with a full window, so each score is exact.
+     * Returns all root moves with their principal variations, best first for
+     * the side to move; equal scores keep generation order.
+     */
+    private List<RootLine> analyze(int depth) {
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        beginSearch(depth);
+        searchStats.nodes++;
+        searchStats.nodesPerPly[0]++;
+        long rootKey = zobristKey();
+        if (rootKey != previousPvKey) previousPv = null;
+        
+        List<Move> allMoves = generateAllMoves(whiteTurn); 
+        List<RootLine> lines = new ArrayList<>(allMoves.size());
         
         for (Move move : allMoves) {
+            followPv = previousPv != null && previousPv.length > 1 && sameMove(move, previousPv[0]);
+            int moveValue = searchRootMove(move, depth, Integer.MIN_VALUE, Integer.MAX_VALUE);
             
-            Piece captured = makeMoveOnBoard(move.from, move.to, board);
-            
-            
-            int moveValue = minimax(depth - 1, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
-            
-           
+            List<Move> pv = new ArrayList<>();
+            pv.add(move);
+            if (depth > 1) pv.addAll(Arrays.asList(pvTable[1]).subList(1, pvLength[1]));
+            lines.add(new RootLine(move, moveValue, pv));
+        }
+        
+        boolean white = whiteTurn;
+        lines.sort((a, b) -> white ? Integer.compare(b.score, a.score) : Integer.compare(a.score, b.score));
+        if (!lines.isEmpty()) {
+            previousPv = lines.get(0).pv.toArray(new Move[0]);
+            previousPvKey = rootKey;
+        }
+        searchStats.finish(lines.isEmpty() ? null : lines.get(0).move);
+        searchStats.commit(event);
+        return lines; 
+    }
+
+    /**
+     * Root splitting: the first root move is searched here with a full window,
+     * the others as tasks on the pool, each on its own copy of the position,
+     * with a window bounded by the best score found so far. The bound sits one
+     * point short of that score, so any move that ties or beats it comes back
+     * exact and the pick matches findBestMove(depth) whatever the timing.
+     */
+    private Move findBestMoveParallel(int depth, ForkJoinPool pool) {
+        Move stored = probeAnalysisStore(depth);
+        if (stored != null) return stored;
+        List<Move> allMoves = generateAllMoves(whiteTurn);
+        if (allMoves.size() < 2 || depth < 2) return findBestMove(depth);
+        
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        beginSearch(depth);
+        searchStats.nodes++;
+        searchStats.nodesPerPly[0]++;
+        
+        boolean white = whiteTurn;
+        IntBinaryOperator better = white ? Math::max : Math::min;
+        int[] scores = new int[allMoves.size()];
+        scores[0] = searchRootMove(allMoves.get(0), depth, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        AtomicInteger bound = new AtomicInteger(scores[0]);
+        
+        List<ForkJoinTask<SearchStats>> tasks = new ArrayList<>();
+        for (int i = 1; i < allMoves.size(); i++) {
+            int index = i;
+            Move move = allMoves.get(i);
+            ChessGame copy = copyPosition();
+            tasks.add(pool.submit(() -> {
+                copy.beginSearch(depth);
+                int b = bound.get();
+                int score = white
+                        ? copy.searchRootMove(move, depth, b == Integer.MIN_VALUE ? b : b - 1, Integer.MAX_VALUE)
+                        : copy.searchRootMove(move, depth, Integer.MIN_VALUE, b == Integer.MAX_VALUE ? b : b + 1);
+                scores[index] = score;
+                bound.accumulateAndGet(score, better);
+                return copy.searchStats;
+            }));
+        }
+        for (ForkJoinTask<SearchStats> task : tasks) {
+            searchStats.add(task.join());
+        }
+        
+        int best = 0;
+        for (int i = 1; i < scores.length; i++) {
+            if (white ? scores[i] > scores[best] : scores[i] < scores[best]) best = i;
+        }
+        searchStats.finish(allMoves.get(best));
+        searchStats.commit(event);
+        saveToAnalysisStore(allMoves.get(best), scores[best], depth);
+        return allMoves.get(best);
+    }
+
+    // the key also covers the evaluation parameters, so results from different params never mix
+    private long analysisKey() {
+        return zobristKey() ^ evalParams.fingerprint();
+    }
+
+    // a stored move from a search at least this deep, if it is legal here
+    // a hit replaces searchStats with a record of the hit, so the log line and JFR event describe this call
+    private Move probeAnalysisStore(int depth) {
+        if (analysisStore == null) return null;
+        SearchEvent event = new SearchEvent();
+        event.begin();
+        SearchStats stats = new SearchStats(depth);
+        AnalysisStore.Entry entry = analysisStore.lookup(analysisKey(), depth);
+        if (entry == null) return null;
+        
+        Move move = unpackMove(entry.move);
+        Piece piece = move == null ? null : board[move.from.row][move.from.col];
+        if (piece == null || piece.isWhite() != whiteTurn || !getValidMoves(move.from).contains(move.to)
+                || !isValidPromotion(piece, move.to, move.promotion)) {
+            return null;
+        }
+        stats.cacheHit = true;
+        stats.finish(move);
+        stats.commit(event);
+        searchStats = stats;
+        return move;
+    }
+
+    private void saveToAnalysisStore(Move move, int score, int depth) {
+        if (analysisStore != null) {
+            analysisStore.store(analysisKey(), packMove(move), score, depth);
+        }
+    }
+
+    private void beginSearch(int depth) {
+        searchStats = new SearchStats(depth);
+        pvTable = new Move[depth + 1][depth + 1];
+        pvLength = new int[depth + 1];
+        killers = new Move[depth + 1][2];
+        followPv = false;
+    }
+
+    private int searchRootMove(Move move, int depth, int alpha, int beta) {
+        Piece captured = makeMoveOnBoard(move.from, move.to, board);
+        try {
+            return minimax(depth - 1, alpha, beta, !whiteTurn);
+        } finally {
             undoMoveOnBoard(move.from, move.to, captured, board);
-            
-            if (moveValue > bestValue) {
-                bestValue = moveValue;
-                bestMove = move;
+        }
+    }
+
+    // iterative deepening up to maxDepth, stopping at the deadline; depth 1 always completes
+    private Move findBestMove(int maxDepth, long deadlineNanos) {
+        Move bestMove = findBestMove(1);
+        for (int depth = 2; depth <= maxDepth && System.nanoTime() < deadlineNanos; depth++) {
+            searchDeadline = deadlineNanos;
+            try {
+                bestMove = findBestMove(depth);
+            } catch (SearchAborted e) {
+                break;
+            } finally {
+                searchDeadline = 0;
             }
         }
-        
-        return bestMove != null ? bestMove : allMoves.get(0); 
+        return bestMove;
     }
 
     private int minimax(int depth, int alpha, int beta, boolean maximizingPlayer) {
+        SearchStats stats = searchStats;
+        if ((stats.nodes & 63) == 0
+                && (searchCancelled || (searchDeadline != 0 && System.nanoTime() > searchDeadline))) {
+            throw SearchAborted.INSTANCE;
+        }
+        int ply = stats.depth - depth;
+        stats.nodes++;
+        stats.nodesPerPly[ply]++;
+        pvLength[ply] = ply;
         if (depth == 0) {
+            stats.leafNodes++;
             return evaluateBoard();
         }
         
-        List<Move> moves = generateAllMoves(maximizingPlayer);
+        Move hashMove = null;
+        if (followPv) {
+            hashMove = ply < previousPv.length ? previousPv[ply] : null;
+            followPv = hashMove != null;
+        }
+        MovePicker picker = new MovePicker(maximizingPlayer, hashMove, killers[ply]);
+        int searched = 0;
         
         if (maximizingPlayer) {
             int maxEval = Integer.MIN_VALUE;
-            for (Move move : moves) {
+            for (Move move = picker.next(); move != null; move = picker.next()) {
+                boolean quiet = board[move.to.row][move.to.col] == null;
+                followPv = followPv && move == hashMove;
                 Piece captured = makeMoveOnBoard(move.from, move.to, board);
-                int eval = minimax(depth - 1, alpha, beta, false);
-                undoMoveOnBoard(move.from, move.to, captured, board);
-                maxEval = Math.max(maxEval, eval);
+                int eval;
+                try {
+                    eval = minimax(depth - 1, alpha, beta, false);
+                } finally {
+                    undoMoveOnBoard(move.from, move.to, captured, board);
+                }
+                followPv = false;
+                searched++;
+                if (eval > maxEval) {
+                    maxEval = eval;
+                    updatePv(ply, move);
+                }
                 alpha = Math.max(alpha, eval);
-                if (beta <= alpha) break;
+                if (beta <= alpha) {
+                    stats.recordCutoff(searched);
+                    if (quiet) storeKiller(ply, move);
+                    break;
+                }
             }
             return maxEval;
         } else {
             int minEval = Integer.MAX_VALUE;
-            for (Move move : moves) {
+            for (Move move = picker.next(); move != null; move = picker.next()) {
+                boolean quiet = board[move.to.row][move.to.col] == null;
+                followPv = followPv && move == hashMove;
                 Piece captured = makeMoveOnBoard(move.from, move.to, board);
-                int eval = minimax(depth - 1, alpha, beta, true);
-                undoMoveOnBoard(move.from, move.to, captured, board);
-                minEval = Math.min(minEval, eval);
+                int eval;
+                try {
+                    eval = minimax(depth - 1, alpha, beta, true);
+                } finally {
+                    undoMoveOnBoard(move.from, move.to, captured, board);
+                }
+                followPv = false;
+                searched++;
+                if (eval < minEval) {
+                    minEval = eval;
+                    updatePv(ply, move);
+                }
                 beta = Math.min(beta, eval);
-                if (beta <= alpha) break;
+                if (beta <= alpha) {
+                    stats.recordCutoff(searched);
+                    if (quiet) storeKiller(ply, move);
+                    break;
+                }
             }
             return minEval;
         }
     }
 
+    private void storeKiller(int ply, Move move) {
+        Move[] slots = killers[ply];
+        if (!sameMove(move, slots[0])) {
+            slots[1] = slots[0];
+            slots[0] = move;
+        }
+    }
+
+    private static boolean sameMove(Move a, Move b) {
+        return a != null && b != null && a.from.equals(b.from) && a.to.equals(b.to);
+    }
+
+    // the line at ply becomes move followed by the child's line
+    private void updatePv(int ply, Move move) {
+        pvTable[ply][ply] = move;
+        int childLength = pvLength[ply + 1];
+        System.arraycopy(pvTable[ply + 1], ply + 1, pvTable[ply], ply + 1, childLength - ply - 1);
+        pvLength[ply] = childLength;
+    }
+
    private List<Position> getValidMoves(Position position) {
         List<Position> possibleMoves = getPossibleMoves(position);
         List<Position> validMoves = new ArrayList<>();
@@ -315,35 +872,37 @@ public class ChessGame {
         Piece piece = board[position.row][position.col];
         if (piece == null) return validMoves;
         
-        boolean isKingInCheck = isInCheck(piece.isWhite());
-        
         for (Position move : possibleMoves) {
-            Piece[][] tempBoard = copyBoard();
-            makeMoveOnBoard(position, move, tempBoard);
-            
-            
-            Position kingPos;
-            if (piece.getType() == PieceType.KING) {
-                kingPos = move;
-            } else {
-                kingPos = piece.isWhite() ? whiteKingPosition : blackKingPosition;
-            }
-            
-            if (!isSquareUnderAttack(kingPos, !piece.isWhite(), tempBoard)) {
-           
-                if (piece.getType() == PieceType.KING && Math.abs(position.col - move.col) == 2) {
-                    if (isValidCastle(piece.isWhite(), move.col == 6)) {
-                        validMoves.add(move);
-                    }
-                } else {
-                    validMoves.add(move);
-                }
+            if (isLegalMove(position, move)) {
+                validMoves.add(move);
             }
         }
         
         return validMoves;
     }
 
+    // from must hold a piece and to must be one of its possible moves
+    private boolean isLegalMove(Position from, Position to) {
+        Piece piece = board[from.row][from.col];
+        Piece[][] tempBoard = copyBoard();
+        makeMoveOnBoard(from, to, tempBoard);
+        
+        Position kingPos;
+        if (piece.getType() == PieceType.KING) {
+            kingPos = to;
+        } else {
+            kingPos = piece.isWhite() ? whiteKingPosition : blackKingPosition;
+        }
+        
+        if (isSquareUnderAttack(kingPos, !piece.isWhite(), tempBoard)) {
+            return false;
+        }
+        if (piece.getType() == PieceType.KING && Math.abs(from.col - to.col) == 2) {
+            return isValidCastle(piece.isWhite(), to.col == 6);
+        }
+        return true;
+    }
+
     private boolean isValidCastle(boolean isWhite, boolean kingside) {
         if (!canCastle(isWhite, kingside)) return false;
         
@@ -373,33 +932,20 @@ public class ChessGame {
         return isSquareUnderAttack(kingPos, !forWhite, board);
     }
 
-   private boolean isCheckmate(boolean forWhite) {
-        if (!isInCheck(forWhite)) return false;
-        
-        
-        for (int fromRow = 0; fromRow < BOARD_SIZE; fromRow++) {
-            for (int fromCol = 0; fromCol < BOARD_SIZE; fromCol++) {
-                Position from = new Position(fromRow, fromCol);
-                Piece piece = board[fromRow][fromCol];
-                
-                if (piece != null && piece.isWhite() == forWhite) {
-                    List<Position> validMoves = getValidMoves(from);
-                    if (!validMoves.isEmpty()) {
-                        return false;
-                    }
-                }
-            }
-        }
-        
-        return true;
-    }
-
     private boolean isSquareUnderAttack(Position square, boolean byWhite, Piece[][] board) {
       
         for (int row = 0; row < BOARD_SIZE; row++) {
             for (int col = 0; col < BOARD_SIZE; col++) {
                 Piece piece = board[row][col];
                 if (piece != null && piece.isWhite() == byWhite) {
+                    // kings attack adjacent squares only; generating their castling moves here would recurse
+                    if (piece.getType() == PieceType.KING) {
+                        if (Math.abs(row - square.row) <= 1 && Math.abs(col - square.col) <= 1
+                                && !(row == square.row && col == square.col)) {
+                            return true;
+                        }
+                        continue;
+                    }
                     List<Position> moves = getPossibleMoves(new Position(row, col), board);
                     for (Position move : moves) {
                         if (move.equals(square)) {
@@ -615,7 +1161,20 @@ public class ChessGame {
         }
     }
 
-     private Piece makeMove(Position from, Position to) {
+    private Piece makeMove(Position from, Position to) {
+        Piece movingPiece = board[from.row][from.col];
+        boolean resetsClock = movingPiece.getType() == PieceType.PAWN || board[to.row][to.col] != null;
+        
+        Piece capturedPiece = applyMove(from, to);
+        
+        PieceType placedType = board[to.row][to.col].getType();
+        moveHistory.add(new Move(from, to, placedType != movingPiece.getType() ? placedType : null));
+        halfmoveClock = resetsClock ? 0 : halfmoveClock + 1;
+        if (!movingPiece.isWhite()) fullmoveNumber++;
+        return capturedPiece;
+    }
+
+     private Piece applyMove(Position from, Position to) {
         Piece movingPiece = board[from.row][from.col];
         Piece capturedPiece = board[to.row][to.col];
         
@@ -631,6 +1190,9 @@ public class ChessGame {
         
         
         updateCastlingRights(from, movingPiece);
+        if (capturedPiece != null && capturedPiece.getType() == PieceType.ROOK) {
+            updateCastlingRights(to, capturedPiece);
+        }
         
        
         if (movingPiece.getType() == PieceType.PAWN && Math.abs(from.row - to.row) == 2) {
@@ -663,6 +1225,18 @@ public class ChessGame {
         return capturedPiece;
     }
 
+    // makes the move and passes the turn, for games driven without the board UI
+    private Piece playMove(Move move) {
+        pendingPromotion = move.promotion;
+        try {
+            Piece capturedPiece = makeMove(move.from, move.to);
+            whiteTurn = !whiteTurn;
+            return capturedPiece;
+        } finally {
+            pendingPromotion = null;
+        }
+    }
+
        private void performCastle(Position from, Position to) {
         boolean isWhite = board[from.row][from.col].isWhite();
         int row = isWhite ? 7 : 0;
@@ -688,6 +1262,7 @@ public class ChessGame {
             castlingRights[2] = false;
             castlingRights[3] = false;
         }
+        enPassantTarget = null;
         
         updateBoard();
     }
@@ -700,12 +1275,19 @@ public class ChessGame {
         board[to.row][to.col] = movingPiece;
         board[from.row][from.col] = null;
         board[capturedPawnRow][to.col] = null;
+        enPassantTarget = null;
         
         updateBoard();
         return capturedPiece;
     }
 
    private void promotePawn(Position position) {
+        if (pendingPromotion != null || frame == null) {
+            PieceType promotion = pendingPromotion != null ? pendingPromotion : PieceType.QUEEN;
+            board[position.row][position.col] = new Piece(promotion, board[position.row][position.col].isWhite());
+            return;
+        }
+        
         String[] options = {"Queen", "Rook", "Bishop", "Knight"};
         int choice = JOptionPane.showOptionDialog(frame, "Choose promotion:", "Pawn Promotion",
                 JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE,
@@ -777,15 +1359,11 @@ public class ChessGame {
         for (int row = 0; row < BOARD_SIZE; row++) {
             for (int col = 0; col < BOARD_SIZE; col++) {
                 if (selectedPiece != null && selectedPiece.row == row && selectedPiece.col == col) {
-                    squares[row][col].setBackground(Color.YELLOW);
+                    setSquareBackground(row, col, Color.YELLOW);
                 } else if (isPossibleMove(new Position(row, col))) {
-                    squares[row][col].setBackground(Color.GREEN);
+                    setSquareBackground(row, col, Color.GREEN);
                 } else {
-                    if ((row + col) % 2 == 0) {
-                        squares[row][col].setBackground(new Color(240, 217, 181));
-                    } else {
-                        squares[row][col].setBackground(new Color(181, 136, 99));
-                    }
+                    setSquareBackground(row, col, baseColor(row, col));
                 }
             }
         }
@@ -798,28 +1376,51 @@ public class ChessGame {
         
         for (int row = 0; row < BOARD_SIZE; row++) {
             for (int col = 0; col < BOARD_SIZE; col++) {
-                if ((row + col) % 2 == 0) {
-                    squares[row][col].setBackground(new Color(240, 217, 181));
-                } else {
-                    squares[row][col].setBackground(new Color(181, 136, 99));
-                }
+                setSquareBackground(row, col, baseColor(row, col));
             }
         }
         updateBoard();
     }
 
+    private static Color baseColor(int row, int col) {
+        return (row + col) % 2 == 0 ? LIGHT_SQUARE : DARK_SQUARE;
+    }
+
+    private void setSquareBackground(int row, int col, Color color) {
+        if (renderedColors[row][col] != color) {
+            squares[row][col].setBackground(color);
+            renderedColors[row][col] = color;
+        }
+    }
+
     private void updateBoard() {
+        if (squares == null) return;
+        
         for (int row = 0; row < BOARD_SIZE; row++) {
             for (int col = 0; col < BOARD_SIZE; col++) {
-                squares[row][col].setIcon(null);
-                
                 Piece piece = board[row][col];
-                if (piece != null) {
-                    String iconPath = getIconPath(piece);
-                    squares[row][col].setIcon(new ImageIcon(iconPath));
+                if (piece != renderedPieces[row][col]) {
+                    squares[row][col].setIcon(piece == null ? null : pieceIcons[pieceIndex(piece)]);
+                    renderedPieces[row][col] = piece;
+                }
+            }
+        }
+    }
+
+    // the 12 piece images, read once and scaled to fit a square; null where an image is missing
+    private ImageIcon[] loadPieceIcons() {
+        ImageIcon[] icons = new ImageIcon[12];
+        for (PieceType type : PieceType.values()) {
+            for (boolean white : new boolean[] {true, false}) {
+                Piece piece = new Piece(type, white);
+                ImageIcon icon = new ImageIcon(getIconPath(piece));
+                if (icon.getImageLoadStatus() == MediaTracker.COMPLETE) {
+                    Image scaled = icon.getImage().getScaledInstance(ICON_SIZE, ICON_SIZE, Image.SCALE_SMOOTH);
+                    icons[pieceIndex(piece)] = new ImageIcon(scaled);
                 }
             }
         }
+        return icons;
     }
 
     private String getIconPath(Piece piece) {
@@ -853,45 +1454,1967 @@ public class ChessGame {
         }
         
         
-        if (isInCheck(true)) score -= 50;  
-        if (isInCheck(false)) score += 50; 
+        if (isInCheck(true)) score -= evalParams.checkBonus;  
+        if (isInCheck(false)) score += evalParams.checkBonus; 
         
         return score;
     }
 
     private int getPieceValue(PieceType type) {
-        switch (type) {
-            case PAWN: return 10;
-            case KNIGHT: return 30;
-            case BISHOP: return 30;
-            case ROOK: return 50;
-            case QUEEN: return 90;
-            case KING: return 900;
-            default: return 0;
-        }
+        return evalParams.pieceValues[type.ordinal()];
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ChessGame());
+    private void loadFen(String fen) {
+        String[] fields = fen.trim().split("\\s+");
+        String[] ranks = fields[0].split("/");
+        if (fields.length < 4 || ranks.length != BOARD_SIZE) {
+            throw new IllegalArgumentException("Bad FEN: " + fen);
+        }
+
+        Piece[][] newBoard = new Piece[BOARD_SIZE][BOARD_SIZE];
+        Position newWhiteKing = null;
+        Position newBlackKing = null;
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            int col = 0;
+            for (char c : ranks[row].toCharArray()) {
+                if (Character.isDigit(c)) {
+                    col += c - '0';
+                    continue;
+                }
+                if (col >= BOARD_SIZE) throw new IllegalArgumentException("Bad FEN rank: " + ranks[row]);
+                PieceType type = pieceTypeForLetter(Character.toLowerCase(c));
+                boolean white = Character.isUpperCase(c);
+                newBoard[row][col] = new Piece(type, white);
+                if (type == PieceType.KING) {
+                    if (white) newWhiteKing = new Position(row, col);
+                    else newBlackKing = new Position(row, col);
+                }
+                col++;
+            }
+            if (col != BOARD_SIZE) throw new IllegalArgumentException("Bad FEN rank: " + ranks[row]);
+        }
+        if (newWhiteKing == null || newBlackKing == null) {
+            throw new IllegalArgumentException("FEN needs both kings: " + fen);
+        }
+
+        board = newBoard;
+        whiteKingPosition = newWhiteKing;
+        blackKingPosition = newBlackKing;
+        whiteTurn = fields[1].equals("w");
+        castlingRights[0] = fields[2].contains("K");
+        castlingRights[1] = fields[2].contains("Q");
+        castlingRights[2] = fields[2].contains("k");
+        castlingRights[3] = fields[2].contains("q");
+        enPassantTarget = fields[3].equals("-") ? null : parseSquare(fields[3]);
+        halfmoveClock = fields.length > 4 && fields[4].matches("\\d+") ? Integer.parseInt(fields[4]) : 0;
+        fullmoveNumber = fields.length > 5 && fields[5].matches("\\d+") ? Integer.parseInt(fields[5]) : 1;
+        gameOver = false;
+        startFen = toFen();
+        moveHistory.clear();
+        result = "*";
     }
 
-   
-    private static class Piece {
-        private PieceType type;
-        private boolean white;
-        
-        public Piece(PieceType type, boolean white) {
-            this.type = type;
-            this.white = white;
+    private String toFen() {
+        StringBuilder fen = new StringBuilder();
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            int empty = 0;
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = board[row][col];
+                if (piece == null) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) fen.append(empty);
+                empty = 0;
+                char letter = pieceLetter(piece.getType());
+                fen.append(piece.isWhite() ? Character.toUpperCase(letter) : letter);
+            }
+            if (empty > 0) fen.append(empty);
+            if (row < BOARD_SIZE - 1) fen.append('/');
         }
         
-        public PieceType getType() { return type; }
-        public boolean isWhite() { return white; }
+        fen.append(whiteTurn ? " w " : " b ");
+        String castling = (castlingRights[0] ? "K" : "") + (castlingRights[1] ? "Q" : "")
+                + (castlingRights[2] ? "k" : "") + (castlingRights[3] ? "q" : "");
+        fen.append(castling.isEmpty() ? "-" : castling);
+        fen.append(' ').append(enPassantTarget == null ? "-" : squareName(enPassantTarget));
+        fen.append(' ').append(halfmoveClock).append(' ').append(fullmoveNumber);
+        return fen.toString();
     }
 
-    private enum PieceType {
-        PAWN, ROOK, KNIGHT, BISHOP, QUEEN, KING
-    }
+    private static char pieceLetter(PieceType type) {
+        switch (type) {
+            case PAWN: return 'p';
+            case KNIGHT: return 'n';
+            case BISHOP: return 'b';
+            case ROOK: return 'r';
+            case QUEEN: return 'q';
+            default: return 'k';
+        }
+    }
+
+    private ChessGame copyPosition() {
+        ChessGame copy = new ChessGame(false, evalParams);
+        copy.restore(snapshot());
+        return copy;
+    }
+
+    private Snapshot snapshot() {
+        long[] squares = new long[4];
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = board[row][col];
+                if (piece != null) {
+                    int square = row * BOARD_SIZE + col;
+                    squares[square >> 4] |= (long) (pieceIndex(piece) + 1) << ((square & 15) * 4);
+                }
+            }
+        }
+        long state = whiteTurn ? 1 : 0;
+        for (int i = 0; i < castlingRights.length; i++) {
+            if (castlingRights[i]) state |= 2L << i;
+        }
+        if (enPassantTarget != null) {
+            state |= (long) (enPassantTarget.row * BOARD_SIZE + enPassantTarget.col + 1) << 5;
+        }
+        state |= (long) (halfmoveClock & 0xFFFF) << 16;
+        state |= (long) fullmoveNumber << 32;
+        return new Snapshot(squares[0], squares[1], squares[2], squares[3], state);
+    }
+
+    // puts back the position only; the game record (start FEN, moves, result) is left alone
+    private void restore(Snapshot snapshot) {
+        Piece[][] newBoard = new Piece[BOARD_SIZE][BOARD_SIZE];
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = snapshot.pieceAt(row * BOARD_SIZE + col);
+                newBoard[row][col] = piece;
+                if (piece != null && piece.getType() == PieceType.KING) {
+                    if (piece.isWhite()) whiteKingPosition = new Position(row, col);
+                    else blackKingPosition = new Position(row, col);
+                }
+            }
+        }
+        board = newBoard;
+        
+        long state = snapshot.state;
+        whiteTurn = (state & 1) != 0;
+        castlingRights = new boolean[4];
+        for (int i = 0; i < castlingRights.length; i++) {
+            castlingRights[i] = (state & (2L << i)) != 0;
+        }
+        int enPassant = (int) (state >> 5) & 127;
+        enPassantTarget = enPassant == 0 ? null : new Position((enPassant - 1) / BOARD_SIZE, (enPassant - 1) % BOARD_SIZE);
+        halfmoveClock = (int) (state >> 16) & 0xFFFF;
+        fullmoveNumber = (int) (state >>> 32);
+        updateBoard();
+    }
+
+    // standard algebraic notation for a legal move in the current position
+    private String toSan(Move move) {
+        String san = toSanWithoutCheck(move);
+        ChessGame after = copyPosition();
+        after.playMove(move);
+        if (after.isInCheck(after.whiteTurn)) {
+            san += after.generateAllMoves(after.whiteTurn).isEmpty() ? "#" : "+";
+        }
+        return san;
+    }
+
+    private String toSanWithoutCheck(Move move) {
+        Piece piece = board[move.from.row][move.from.col];
+        StringBuilder san = new StringBuilder();
+        
+        if (piece.getType() == PieceType.KING && Math.abs(move.from.col - move.to.col) == 2) {
+            san.append(move.to.col == 6 ? "O-O" : "O-O-O");
+        } else {
+            boolean capture = board[move.to.row][move.to.col] != null
+                    || (piece.getType() == PieceType.PAWN && move.to.equals(enPassantTarget));
+            if (piece.getType() == PieceType.PAWN) {
+                if (capture) san.append((char) ('a' + move.from.col));
+            } else {
+                san.append(Character.toUpperCase(pieceLetter(piece.getType())));
+                appendDisambiguation(san, move, piece);
+            }
+            if (capture) san.append('x');
+            san.append(squareName(move.to));
+            if (piece.getType() == PieceType.PAWN && (move.to.row == 0 || move.to.row == 7)) {
+                PieceType promotion = move.promotion != null ? move.promotion : PieceType.QUEEN;
+                san.append('=').append(Character.toUpperCase(pieceLetter(promotion)));
+            }
+        }
+        return san.toString();
+    }
+
+    private void appendDisambiguation(StringBuilder san, Move move, Piece piece) {
+        boolean ambiguous = false, sameCol = false, sameRow = false;
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece other = board[row][col];
+                if (other == null || other == piece || (row == move.from.row && col == move.from.col)) continue;
+                if (other.getType() != piece.getType() || other.isWhite() != piece.isWhite()) continue;
+                if (getValidMoves(new Position(row, col)).contains(move.to)) {
+                    ambiguous = true;
+                    if (col == move.from.col) sameCol = true;
+                    if (row == move.from.row) sameRow = true;
+                }
+            }
+        }
+        if (!ambiguous) return;
+        if (!sameCol) {
+            san.append((char) ('a' + move.from.col));
+        } else if (!sameRow) {
+            san.append((char) ('8' - move.from.row));
+        } else {
+            san.append(squareName(move.from));
+        }
+    }
+
+    private Move parseSan(String text) {
+        String wanted = text.replaceAll("[+#!?]", "");
+        for (Move move : generateAllMovesWithPromotions(whiteTurn)) {
+            if (toSanWithoutCheck(move).equals(wanted)) return move;
+        }
+        throw new IllegalArgumentException("Illegal or unknown move: " + text);
+    }
+
+    private List<Move> generateAllMovesWithPromotions(boolean forWhite) {
+        List<Move> moves = new ArrayList<>();
+        PieceType[] promotions = {PieceType.QUEEN, PieceType.ROOK, PieceType.BISHOP, PieceType.KNIGHT};
+        for (Move move : generateAllMoves(forWhite)) {
+            Piece piece = board[move.from.row][move.from.col];
+            if (piece.getType() == PieceType.PAWN && (move.to.row == 0 || move.to.row == 7)) {
+                for (PieceType promotion : promotions) moves.add(new Move(move.from, move.to, promotion));
+            } else {
+                moves.add(move);
+            }
+        }
+        return moves;
+    }
+
+    private String toPgn() {
+        ChessGame replay = new ChessGame(false, evalParams);
+        if (startFen != null) replay.loadFen(startFen);
+        
+        StringBuilder pgn = new StringBuilder();
+        pgn.append("[Event \"Casual game\"]\n");
+        pgn.append("[Site \"?\"]\n");
+        pgn.append("[Date \"").append(LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd"))).append("\"]\n");
+        pgn.append("[Round \"-\"]\n");
+        pgn.append("[White \"AI\"]\n");
+        pgn.append("[Black \"Human\"]\n");
+        pgn.append("[Result \"").append(result).append("\"]\n");
+        if (startFen != null) {
+            pgn.append("[SetUp \"1\"]\n");
+            pgn.append("[FEN \"").append(startFen).append("\"]\n");
+        }
+        pgn.append('\n');
+        
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < moveHistory.size(); i++) {
+            Move move = moveHistory.get(i);
+            String token = "";
+            if (replay.whiteTurn) {
+                token = replay.fullmoveNumber + ". ";
+            } else if (i == 0) {
+                token = replay.fullmoveNumber + "... ";
+            }
+            token += replay.toSan(move);
+            replay.playMove(move);
+            
+            if (line.length() + token.length() + 1 > 79) {
+                pgn.append(line.toString().trim()).append('\n');
+                line.setLength(0);
+            }
+            line.append(token).append(' ');
+        }
+        line.append(result);
+        pgn.append(line).append('\n');
+        return pgn.toString();
+    }
+
+    // reads the first game's main line; comments, variations and annotations are skipped
+    private void loadPgn(String pgn) {
+        Map<String, String> tags = new HashMap<>();
+        Matcher tag = PGN_TAG.matcher(pgn);
+        int movetextStart = 0;
+        while (tag.find()) {
+            if (!pgn.substring(movetextStart, tag.start()).trim().isEmpty()) break;
+            tags.put(tag.group(1), tag.group(2));
+            movetextStart = tag.end();
+        }
+        
+        String fen = tags.get("FEN");
+        if (fen != null) {
+            loadFen(fen);
+        } else {
+            resetPosition();
+        }
+        
+        String movetext = pgn.substring(movetextStart)
+                .replaceAll("\\{[^}]*\\}", " ")
+                .replaceAll(";[^\\n]*", " ")
+                .replaceAll("\\$\\d+", " ");
+        int variationDepth = 0;
+        for (String token : movetext.replace("(", " ( ").replace(")", " ) ").split("\\s+")) {
+            if (token.equals("(")) variationDepth++;
+            else if (token.equals(")")) variationDepth--;
+            if (variationDepth > 0 || token.isEmpty() || token.equals(")")) continue;
+            if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) {
+                result = token;
+                break;
+            }
+            token = token.replaceFirst("^\\d+\\.+", "");
+            if (token.isEmpty()) continue;
+            playMove(parseSan(token.replace('0', 'O')));
+        }
+        if (tags.containsKey("Result")) result = tags.get("Result");
+    }
+
+    // see RECORD_MAGIC for the layout
+    private void writeRecord(DataOutputStream out) throws IOException {
+        if (startFen != null) {
+            throw new IllegalStateException("Binary records require the standard starting position");
+        }
+        out.writeShort(RECORD_MAGIC);
+        out.writeByte(RECORD_VERSION);
+        out.writeByte(Math.max(0, Arrays.asList(RECORD_RESULTS).indexOf(result)));
+        out.writeShort(moveHistory.size());
+        for (Move move : moveHistory) {
+            out.writeShort(packMove(move));
+        }
+    }
+
+    // from square (6 bits), to square (6 bits), promotion PieceType ordinal (3 bits, 0 for none)
+    private static int packMove(Move move) {
+        int from = move.from.row * BOARD_SIZE + move.from.col;
+        int to = move.to.row * BOARD_SIZE + move.to.col;
+        int promotion = move.promotion == null ? 0 : move.promotion.ordinal();
+        return from | (to << 6) | (promotion << 12);
+    }
+
+    // null if the promotion field is not a piece a pawn can become
+    private static Move unpackMove(int packed) {
+        Position from = new Position((packed & 63) / BOARD_SIZE, (packed & 63) % BOARD_SIZE);
+        Position to = new Position(((packed >> 6) & 63) / BOARD_SIZE, ((packed >> 6) & 63) % BOARD_SIZE);
+        int promotion = (packed >> 12) & 7;
+        if (promotion > PieceType.QUEEN.ordinal()) return null;
+        return new Move(from, to, promotion == 0 ? null : PieceType.values()[promotion]);
+    }
+
+    // replays the next record from the stream; returns false at a clean end of stream
+    private boolean readRecord(DataInputStream in) throws IOException {
+        int magic;
+        try {
+            magic = in.readUnsignedShort();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (magic != RECORD_MAGIC || in.readUnsignedByte() != RECORD_VERSION) {
+            throw new IOException("Not a game record");
+        }
+        int resultIndex = in.readUnsignedByte();
+        int plies = in.readUnsignedShort();
+        
+        resetPosition();
+        for (int i = 0; i < plies; i++) {
+            Move move = unpackMove(in.readUnsignedShort());
+            Piece piece = move == null ? null : board[move.from.row][move.from.col];
+            if (piece == null || piece.isWhite() != whiteTurn || !getValidMoves(move.from).contains(move.to)
+                    || !isValidPromotion(piece, move.to, move.promotion)) {
+                throw new IOException("Illegal move in game record at ply " + (i + 1));
+            }
+            playMove(move);
+        }
+        result = resultIndex < RECORD_RESULTS.length ? RECORD_RESULTS[resultIndex] : "*";
+        return true;
+    }
+
+    // not in check, and no capture wins material outright
+    private boolean isQuietPosition() {
+        if (isInCheck(whiteTurn)) return false;
+        
+        for (Move move : generateAllMoves(whiteTurn)) {
+            Piece target = board[move.to.row][move.to.col];
+            if (target == null) continue;
+            
+            // test the recapture after the capture; attacks never land on a square holding their own piece
+            int gain = getPieceValue(target.getType());
+            Piece[][] afterCapture = copyBoard();
+            makeMoveOnBoard(move.from, move.to, afterCapture);
+            if (isSquareUnderAttack(move.to, target.isWhite(), afterCapture)) {
+                gain -= getPieceValue(board[move.from.row][move.from.col].getType());
+            }
+            if (gain > 0) return false;
+        }
+        return true;
+    }
+
+    private static PieceType pieceTypeForLetter(char letter) {
+        switch (letter) {
+            case 'p': return PieceType.PAWN;
+            case 'n': return PieceType.KNIGHT;
+            case 'b': return PieceType.BISHOP;
+            case 'r': return PieceType.ROOK;
+            case 'q': return PieceType.QUEEN;
+            case 'k': return PieceType.KING;
+            default: throw new IllegalArgumentException("Bad piece letter: " + letter);
+        }
+    }
+
+    private long zobristKey() {
+        long key = whiteTurn ? ZOBRIST_WHITE_TO_MOVE : 0L;
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = board[row][col];
+                if (piece != null) {
+                    key ^= ZOBRIST_PIECES[pieceIndex(piece)][row * BOARD_SIZE + col];
+                }
+            }
+        }
+        for (int i = 0; i < castlingRights.length; i++) {
+            if (castlingRights[i]) key ^= ZOBRIST_CASTLING[i];
+        }
+        if (enPassantTarget != null) key ^= ZOBRIST_EN_PASSANT[enPassantTarget.col];
+        return key;
+    }
+
+    private static int pieceIndex(Piece piece) {
+        return piece.getType().ordinal() + (piece.isWhite() ? 0 : 6);
+    }
+
+    // bare kings, or kings plus a single knight or bishop
+    private boolean isInsufficientMaterial() {
+        int minorPieces = 0;
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            for (int col = 0; col < BOARD_SIZE; col++) {
+                Piece piece = board[row][col];
+                if (piece == null || piece.getType() == PieceType.KING) continue;
+                if (piece.getType() != PieceType.KNIGHT && piece.getType() != PieceType.BISHOP) return false;
+                minorPieces++;
+            }
+        }
+        return minorPieces <= 1;
+    }
+
+    // squares are named in algebraic notation, "a1" being row 7, col 0
+    private static Position parseSquare(String name) {
+        if (name.length() != 2) throw new IllegalArgumentException("Bad square: " + name);
+        int col = name.charAt(0) - 'a';
+        int row = '8' - name.charAt(1);
+        if (col < 0 || col >= BOARD_SIZE || row < 0 || row >= BOARD_SIZE) {
+            throw new IllegalArgumentException("Bad square: " + name);
+        }
+        return new Position(row, col);
+    }
+
+    private static String squareName(Position position) {
+        return "" + (char) ('a' + position.col) + (char) ('8' - position.row);
+    }
+
+    private Move parseMove(String text) {
+        if (text.length() < 4 || text.length() > 5) throw new IllegalArgumentException("Bad move: " + text);
+        Position from = parseSquare(text.substring(0, 2));
+        Position to = parseSquare(text.substring(2, 4));
+        Piece piece = board[from.row][from.col];
+        if (piece == null || piece.isWhite() != whiteTurn || !getValidMoves(from).contains(to)) {
+            throw new IllegalArgumentException("Illegal move: " + text);
+        }
+        PieceType promotion = text.length() > 4 ? pieceTypeForLetter(text.charAt(4)) : null;
+        if (!isValidPromotion(piece, to, promotion)) {
+            throw new IllegalArgumentException("Illegal promotion: " + text);
+        }
+        return new Move(from, to, promotion);
+    }
+
+    // no promotion, or a pawn reaching the last rank and becoming a queen, rook, bishop or knight
+    private static boolean isValidPromotion(Piece piece, Position to, PieceType promotion) {
+        if (promotion == null) return true;
+        return piece.getType() == PieceType.PAWN && to.row == (piece.isWhite() ? 0 : BOARD_SIZE - 1)
+                && promotion != PieceType.PAWN && promotion != PieceType.KING;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("tournament")) {
+            Tournament.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("tune")) {
+            Tuner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("server")) {
+            GameServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            benchmark(parseOptions(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        EvalParams params = args.length == 2 && args[0].equals("-params")
+                ? EvalParams.load(Paths.get(args[1]))
+                : EvalParams.DEFAULTS;
+        SwingUtilities.invokeLater(() -> new ChessGame(true, params));
+    }
+
+    private static final String[] BENCH_POSITIONS = {
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+        "r1bqkbnr/pppp1ppp/2n5/4p3/3PP3/5N2/PPP2PPP/RNBQKB1R b KQkq - 0 3",
+        "r1bq1rk1/ppp2ppp/2np1n2/2b1p3/2B1P3/2NP1N2/PPP2PPP/R1BQ1RK1 w - - 0 7",
+        "r2q1rk1/pp2bppp/2n1pn2/3p4/3P1B2/2PBPN2/PP3PPP/RN1Q1RK1 b - - 0 10",
+    };
+
+    /*
+     * Parallel root search scaling on fixed positions:
+     *   java ChessGame bench -depth 3 -threads 1,2,4 -runs 7
+     * Every position is searched a few times before anything is timed so
+     * the JIT has settled, each pool gets a further warm-up search, and
+     * then it is timed over -runs searches; the median is reported, with
+     * the interquartile spread as a share of it. Speedups are
+     * against findBestMoveParallel on a one-thread pool, which is always run,
+     * and are left out when that baseline spreads by more than 10%. Thread
+     * counts beyond the available processors are flagged, since they cannot
+     * scale. The serial search gives every root move a full window (it keeps
+     * all root scores), so it is timed for reference only and serves to check
+     * that every run picks the same move.
+     */
+    private static void benchmark(Map<String, String> options) {
+        int depth = Integer.parseInt(options.getOrDefault("depth", "3"));
+        int runs = Math.max(1, Integer.parseInt(options.getOrDefault("runs", "7")));
+        int processors = Runtime.getRuntime().availableProcessors();
+        SortedSet<Integer> threadCounts = new TreeSet<>();
+        threadCounts.add(1);
+        for (String count : options.getOrDefault("threads", String.valueOf(processors)).split(",")) {
+            threadCounts.add(Integer.parseInt(count.trim()));
+        }
+        System.out.printf("depth %d, %d runs per measurement, %d processors available%n", depth, runs, processors);
+        for (int pass = 0; pass < 3; pass++) {
+            for (String fen : BENCH_POSITIONS) {
+                ChessGame game = new ChessGame(false, EvalParams.DEFAULTS);
+                game.loadFen(fen);
+                game.findBestMove(depth);
+                game.findBestMoveParallel(depth, ForkJoinPool.commonPool());
+            }
+        }
+        
+        for (String fen : BENCH_POSITIONS) {
+            ChessGame game = new ChessGame(false, EvalParams.DEFAULTS);
+            game.loadFen(fen);
+            Move serial = game.findBestMove(depth); // warm-up
+            long[] serialTimes = timeRuns(runs, () -> game.findBestMove(depth));
+            System.out.printf("%s%n  serial      %s %8.1f ms%n", fen, serial, median(serialTimes) / 1e6);
+            
+            double baselineNanos = 0;
+            boolean baselineStable = false;
+            for (int threads : threadCounts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    Move parallel = game.findBestMoveParallel(depth, pool); // warm-up
+                    long[] times = timeRuns(runs, () -> game.findBestMoveParallel(depth, pool));
+                    double nanos = median(times);
+                    double spread = (times[times.length * 3 / 4] - times[times.length / 4]) / nanos;
+                    if (threads == 1) {
+                        baselineNanos = nanos;
+                        baselineStable = spread <= 0.10;
+                    }
+                    String speedup = !baselineStable ? "  speedup n/a (baseline unstable)"
+                            : String.format("  speedup %.2fx", baselineNanos / nanos);
+                    System.out.printf("  %2d threads  %s %8.1f ms  spread %4.1f%%%s%s%s%n", threads, parallel, nanos / 1e6,
+                            100 * spread, speedup, threads > processors ? "  (more threads than processors)" : "",
+                            parallel.toString().equals(serial.toString()) ? "" : "  MISMATCH");
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+
+    // sorted wall times of runs calls to search
+    private static long[] timeRuns(int runs, Runnable search) {
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            search.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static double median(long[] sorted) {
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("-")) throw new IllegalArgumentException("Expected option: " + args[i]);
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Material values and the check bonus used by evaluateBoard. Stored as a
+     * properties file so values produced by the tuner can be loaded back.
+     */
+    private static class EvalParams {
+        static final EvalParams DEFAULTS = new EvalParams(new int[] {10, 50, 30, 30, 90, 900}, 50);
+
+        final int[] pieceValues;
+        final int checkBonus;
+
+        EvalParams(int[] pieceValues, int checkBonus) {
+            this.pieceValues = pieceValues;
+            this.checkBonus = checkBonus;
+        }
+
+        static EvalParams load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            int[] values = new int[PieceType.values().length];
+            for (PieceType type : PieceType.values()) {
+                values[type.ordinal()] = Integer.parseInt(properties.getProperty(key(type),
+                        String.valueOf(DEFAULTS.pieceValues[type.ordinal()])).trim());
+            }
+            int check = Integer.parseInt(properties.getProperty("check",
+                    String.valueOf(DEFAULTS.checkBonus)).trim());
+            return new EvalParams(values, check);
+        }
+
+        void store(Path file, String comment) throws IOException {
+            Properties properties = new Properties();
+            for (PieceType type : PieceType.values()) {
+                properties.setProperty(key(type), String.valueOf(pieceValues[type.ordinal()]));
+            }
+            properties.setProperty("check", String.valueOf(checkBonus));
+            try (OutputStream out = Files.newOutputStream(file)) {
+                properties.store(out, comment);
+            }
+        }
+
+        private static String key(PieceType type) {
+            return type.name().toLowerCase(Locale.ROOT);
+        }
+
+        long fingerprint() {
+            long hash = checkBonus;
+            for (int value : pieceValues) hash = hash * 31 + value;
+            return hash * 0x9E3779B97F4A7C15L;
+        }
+    }
+
+    /**
+     * Best moves found by earlier searches, kept in a memory-mapped file so
+     * they survive restarts. The file is a 16 byte header (magic, version,
+     * entry count) followed by fixed 24 byte entries: key, last-used time,
+     * score, packed move and depth. New positions are appended; a hit updates
+     * its time in place. When the file is full it is compacted in place to
+     * the most recently used half, dropping anything older than the age limit.
+     * The in-memory index belongs to one process, so the file is locked for as
+     * long as it is open and a second window or server runs without it.
+     */
+    private static class AnalysisStore {
+        private static final int MAGIC = 0x43484153;
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 16;
+        private static final int ENTRY_BYTES = 24;
+
+        private final FileChannel channel;
+        private final FileLock lock;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final long maxAgeMillis;
+        private final Map<Long, Integer> index = new HashMap<>();
+        private int count;
+
+        static class Entry {
+            final int move;
+            final int score;
+            final int depth;
+
+            Entry(int move, int score, int depth) {
+                this.move = move;
+                this.score = score;
+                this.depth = depth;
+            }
+        }
+
+        private AnalysisStore(FileChannel channel, FileLock lock, MappedByteBuffer buffer, int capacity, long maxAgeMillis) {
+            this.channel = channel;
+            this.lock = lock;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        static AnalysisStore open(Path file, int capacity, long maxAgeMillis) throws IOException {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                channel.close();
+                throw new IOException("Analysis cache already in use: " + file);
+            }
+            
+            MappedByteBuffer buffer;
+            boolean created;
+            try {
+                created = channel.size() == 0;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * ENTRY_BYTES);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            
+            AnalysisStore store = new AnalysisStore(channel, lock, buffer, capacity, maxAgeMillis);
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, 0);
+            } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                store.close();
+                throw new IOException("Not an analysis cache: " + file);
+            }
+            store.count = Math.min(Math.max(buffer.getInt(8), 0), capacity);
+            for (int slot = 0; slot < store.count; slot++) {
+                store.index.put(buffer.getLong(offset(slot)), slot);
+            }
+            return store;
+        }
+
+        // the window or server runs without the cache rather than failing to start
+        static AnalysisStore openQuietly(Path file) {
+            try {
+                AnalysisStore store = open(file, ANALYSIS_CACHE_ENTRIES, ANALYSIS_CACHE_MAX_AGE_MILLIS);
+                Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+                return store;
+            } catch (IOException | RuntimeException e) {
+                LOG.warning("Analysis cache disabled: " + e);
+                return null;
+            }
+        }
+
+        private static int offset(int slot) {
+            return HEADER_BYTES + slot * ENTRY_BYTES;
+        }
+
+        synchronized Entry lookup(long key, int minDepth) {
+            Integer slot = index.get(key);
+            if (slot == null) return null;
+            int offset = offset(slot);
+            if (buffer.getLong(offset) != key) {
+                index.remove(key);
+                return null;
+            }
+            int depth = buffer.get(offset + 22);
+            if (depth < minDepth) return null;
+            buffer.putLong(offset + 8, System.currentTimeMillis());
+            return new Entry(buffer.getShort(offset + 20) & 0xFFFF, buffer.getInt(offset + 16), depth);
+        }
+
+        synchronized void store(long key, int move, int score, int depth) {
+            Integer slot = index.get(key);
+            if (slot != null && buffer.getLong(offset(slot)) != key) {
+                index.remove(key);
+                slot = null;
+            }
+            if (slot != null && buffer.get(offset(slot) + 22) > depth) return;
+            if (slot == null) {
+                if (count == capacity) compact();
+                slot = count++;
+                index.put(key, slot);
+            }
+            int offset = offset(slot);
+            buffer.putLong(offset, key);
+            buffer.putLong(offset + 8, System.currentTimeMillis());
+            buffer.putInt(offset + 16, score);
+            buffer.putShort(offset + 20, (short) move);
+            buffer.put(offset + 22, (byte) depth);
+            buffer.putInt(8, count);
+        }
+
+        // keeps the most recently used half; the count is zeroed first so a crash leaves an empty cache
+        private void compact() {
+            long oldest = System.currentTimeMillis() - maxAgeMillis;
+            List<byte[]> kept = new ArrayList<>(count);
+            for (int slot = 0; slot < count; slot++) {
+                if (buffer.getLong(offset(slot) + 8) < oldest) continue;
+                byte[] entry = new byte[ENTRY_BYTES];
+                buffer.get(offset(slot), entry);
+                kept.add(entry);
+            }
+            kept.sort(Comparator.comparingLong((byte[] entry) -> ByteBuffer.wrap(entry).getLong(8)).reversed());
+            kept = kept.subList(0, Math.min(kept.size(), capacity / 2));
+            
+            buffer.putInt(8, 0);
+            index.clear();
+            count = 0;
+            for (byte[] entry : kept) {
+                buffer.put(offset(count), entry);
+                index.put(ByteBuffer.wrap(entry).getLong(0), count);
+                count++;
+            }
+            buffer.putInt(8, count);
+        }
+
+        synchronized void flush() {
+            buffer.force();
+        }
+
+        synchronized void close() {
+            flush();
+            try {
+                lock.release();
+                channel.close();
+            } catch (IOException e) {
+                LOG.warning("Closing analysis cache: " + e);
+            }
+        }
+    }
+
+    /**
+     * Hands out the moves of an interior node one at a time, in stages: the
+     * hash move, captures that gain or trade material in MVV-LVA order, the
+     * killers, the quiet moves, and last the captures of a cheaper piece. A
+     * stage is generated only once the one before it runs dry, and legality is
+     * checked only for the move about to be returned, so a cutoff on an early
+     * move skips the rest of the work.
+     */
+    private class MovePicker {
+        private static final int HASH = 0;
+        private static final int GOOD_CAPTURES = 1;
+        private static final int KILLERS = 2;
+        private static final int QUIETS = 3;
+        private static final int BAD_CAPTURES = 4;
+        private static final int DONE = 5;
+
+        private final boolean forWhite;
+        private final Move hashMove;
+        private final Move killer1, killer2;
+        private int stage = HASH;
+        private List<Move> moves;
+        private int index;
+        private List<Move> badCaptures;
+
+        MovePicker(boolean forWhite, Move hashMove, Move[] killers) {
+            this.forWhite = forWhite;
+            this.hashMove = hashMove;
+            this.killer1 = killers[0];
+            this.killer2 = killers[1];
+            this.moves = hashMove != null && isPseudoLegal(hashMove, false)
+                    ? Collections.singletonList(hashMove) : Collections.<Move>emptyList();
+        }
+
+        Move next() {
+            while (true) {
+                while (index < moves.size()) {
+                    Move move = moves.get(index++);
+                    if (stage != HASH && sameMove(move, hashMove)) continue;
+                    if (stage == QUIETS && (sameMove(move, killer1) || sameMove(move, killer2))) continue;
+                    if (isLegalMove(move.from, move.to)) return move;
+                }
+                if (++stage == DONE) return null;
+                moves = generateStage();
+                index = 0;
+            }
+        }
+
+        private List<Move> generateStage() {
+            switch (stage) {
+                case GOOD_CAPTURES:
+                    List<Move> captures = generate(true);
+                    captures.sort(Comparator.comparingInt((Move m) -> -getPieceValue(pieceAt(m.to).getType()))
+                            .thenComparingInt(m -> getPieceValue(pieceAt(m.from).getType())));
+                    List<Move> good = new ArrayList<>(captures.size());
+                    badCaptures = new ArrayList<>();
+                    for (Move move : captures) {
+                        if (getPieceValue(pieceAt(move.to).getType()) >= getPieceValue(pieceAt(move.from).getType())) {
+                            good.add(move);
+                        } else {
+                            badCaptures.add(move);
+                        }
+                    }
+                    return good;
+                case KILLERS:
+                    List<Move> valid = new ArrayList<>(2);
+                    if (killer1 != null && isPseudoLegal(killer1, true)) valid.add(killer1);
+                    if (killer2 != null && isPseudoLegal(killer2, true)) valid.add(killer2);
+                    return valid;
+                case QUIETS:
+                    return generate(false);
+                default:
+                    return badCaptures;
+            }
+        }
+
+        private List<Move> generate(boolean captures) {
+            List<Move> result = new ArrayList<>();
+            for (int row = 0; row < BOARD_SIZE; row++) {
+                for (int col = 0; col < BOARD_SIZE; col++) {
+                    Piece piece = board[row][col];
+                    if (piece == null || piece.isWhite() != forWhite) continue;
+                    Position from = new Position(row, col);
+                    for (Position to : getPossibleMoves(from)) {
+                        if ((board[to.row][to.col] != null) == captures) {
+                            result.add(new Move(from, to));
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        // a move carried over from another node: still one of this position's moves?
+        private boolean isPseudoLegal(Move move, boolean quietOnly) {
+            Piece piece = pieceAt(move.from);
+            if (piece == null || piece.isWhite() != forWhite) return false;
+            if (quietOnly && pieceAt(move.to) != null) return false;
+            return getPossibleMoves(move.from).contains(move.to);
+        }
+
+        private Piece pieceAt(Position square) {
+            return board[square.row][square.col];
+        }
+    }
+
+    private static class RootLine {
+        final Move move;
+        final int score;
+        final List<Move> pv;
+
+        RootLine(Move move, int score, List<Move> pv) {
+            this.move = move;
+            this.score = score;
+            this.pv = pv;
+        }
+    }
+
+    private static class Analysis {
+        final long key;
+        final List<RootLine> lines;
+
+        Analysis(long key, List<RootLine> lines) {
+            this.key = key;
+            this.lines = lines;
+        }
+    }
+
+    // every legal move for the side to move, grouped by the square it starts from
+    private static class LegalMoves {
+        final int version;
+        final boolean inCheck;
+        final Map<Position, List<Position>> byOrigin;
+
+        LegalMoves(int version, boolean inCheck, Map<Position, List<Position>> byOrigin) {
+            this.version = version;
+            this.inCheck = inCheck;
+            this.byOrigin = byOrigin;
+        }
+
+        // a fresh list, since the selection code clears possibleMoves in place
+        List<Position> from(Position origin) {
+            return new ArrayList<>(byOrigin.getOrDefault(origin, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * Counters for one findBestMove call. Each search runs on a single
+     * thread and owns its SearchStats, so the counters are plain fields.
+     */
+    private static class SearchStats {
+        final int depth;
+        final long[] nodesPerPly;
+        final long startNanos = System.nanoTime();
+        long nodes;
+        long leafNodes;
+        long betaCutoffs;
+        long firstMoveCutoffs;
+        long elapsedNanos;
+        Move bestMove;
+        boolean cacheHit;
+
+        SearchStats(int depth) {
+            this.depth = depth;
+            this.nodesPerPly = new long[depth + 1];
+        }
+
+        void add(SearchStats other) {
+            nodes += other.nodes;
+            leafNodes += other.leafNodes;
+            betaCutoffs += other.betaCutoffs;
+            firstMoveCutoffs += other.firstMoveCutoffs;
+            for (int i = 0; i < nodesPerPly.length; i++) nodesPerPly[i] += other.nodesPerPly[i];
+        }
+
+        void recordCutoff(int movesSearched) {
+            betaCutoffs++;
+            if (movesSearched == 1) firstMoveCutoffs++;
+        }
+
+        void finish(Move bestMove) {
+            this.bestMove = bestMove;
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        double firstMoveCutoffRate() {
+            return betaCutoffs == 0 ? 0 : (double) firstMoveCutoffs / betaCutoffs;
+        }
+
+        // average number of children searched per interior node
+        double branchingFactor() {
+            long interior = nodes - leafNodes;
+            return interior == 0 ? 0 : (double) (nodes - 1) / interior;
+        }
+
+        long nodesPerSecond() {
+            return elapsedNanos == 0 ? 0 : nodes * 1_000_000_000L / elapsedNanos;
+        }
+
+        void commit(SearchEvent event) {
+            event.end();
+            if (!event.shouldCommit()) return;
+            event.depth = depth;
+            event.nodes = nodes;
+            event.leafNodes = leafNodes;
+            event.betaCutoffs = betaCutoffs;
+            event.firstMoveCutoffRate = firstMoveCutoffRate();
+            event.branchingFactor = branchingFactor();
+            event.nodesPerSecond = nodesPerSecond();
+            event.nodesPerPly = Arrays.toString(nodesPerPly);
+            event.bestMove = String.valueOf(bestMove);
+            event.cacheHit = cacheHit;
+            event.commit();
+        }
+
+        String summary() {
+            if (cacheHit) {
+                return String.format("Search depth %d: best %s from the analysis cache in %d ms",
+                        depth, bestMove, elapsedNanos / 1_000_000);
+            }
+            return String.format("Search depth %d: best %s, %d nodes (%d leaves) in %d ms, %d nodes/s, "
+                            + "%d cutoffs (%.1f%% on first move), branching %.2f, nodes per ply %s",
+                    depth, bestMove, nodes, leafNodes, elapsedNanos / 1_000_000, nodesPerSecond(),
+                    betaCutoffs, 100 * firstMoveCutoffRate(), branchingFactor(), Arrays.toString(nodesPerPly));
+        }
+    }
+
+    // thrown through minimax when the search deadline passes; the stack unwinds via the undo blocks
+    private static class SearchAborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final SearchAborted INSTANCE = new SearchAborted();
+
+        private SearchAborted() {
+            super("search deadline passed", null, false, false);
+        }
+    }
+
+    @Name("chess.Search")
+    @Label("Search")
+    @Category("Chess")
+    @Description("One findBestMove call")
+    static class SearchEvent extends Event {
+        @Label("Depth")
+        int depth;
+
+        @Label("Nodes")
+        long nodes;
+
+        @Label("Leaf Nodes")
+        long leafNodes;
+
+        @Label("Beta Cutoffs")
+        long betaCutoffs;
+
+        @Label("First Move Cutoff Rate")
+        @Percentage
+        double firstMoveCutoffRate;
+
+        @Label("Branching Factor")
+        double branchingFactor;
+
+        @Label("Nodes per Second")
+        long nodesPerSecond;
+
+        @Label("Nodes per Ply")
+        String nodesPerPly;
+
+        @Label("Best Move")
+        String bestMove;
+
+        @Label("Analysis Cache Hit")
+        boolean cacheHit;
+    }
+
+    private static class EngineConfig {
+        final String name;
+        final int depth;
+        final EvalParams params;
+
+        EngineConfig(String name, int depth, EvalParams params) {
+            this.name = name;
+            this.depth = depth;
+            this.params = params;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (depth " + depth + ")";
+        }
+    }
+
+    /**
+     * Self-play match between two engine configurations, run on all cores.
+     * Stops when the SPRT for elo0 vs elo1 accepts either hypothesis or the
+     * game limit is reached.
+     *
+     *   java ChessGame tournament -depthA 3 -depthB 2 -openings book.txt -games 2000
+     *
+     * The openings file holds one opening per line as moves in coordinate
+     * notation ("e2e4 e7e5 g1f3"); each opening is played with both colours.
+     * Both engines are deterministic, so an opening pair is never replayed:
+     * the run ends when the openings run out. Without -openings, distinct
+     * openings of -randomPlies random legal moves (default 6) are drawn from
+     * -seed instead, one per game pair. With -record games.cgr every finished
+     * game is appended to that file as a binary game record.
+     */
+    private static class Tournament {
+        private final EngineConfig engineA;
+        private final EngineConfig engineB;
+        private final List<List<String>> openings;
+        private final int maxGames;
+        private final boolean openingsLimitGames;
+        private final int threads;
+        private final int maxPlies;
+        private final int adjudicateScore;
+        private final int adjudicatePlies;
+        private final double elo0, elo1, lowerBound, upperBound;
+        private final Path recordFile;
+        private DataOutputStream records;
+
+        private final AtomicInteger nextGame = new AtomicInteger();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private int wins, draws, losses;
+        private long startNanos;
+
+        Tournament(Map<String, String> options) throws IOException {
+            engineA = new EngineConfig("A", Integer.parseInt(options.getOrDefault("depthA", "3")),
+                    options.containsKey("paramsA") ? EvalParams.load(Paths.get(options.get("paramsA"))) : EvalParams.DEFAULTS);
+            engineB = new EngineConfig("B", Integer.parseInt(options.getOrDefault("depthB", "2")),
+                    options.containsKey("paramsB") ? EvalParams.load(Paths.get(options.get("paramsB"))) : EvalParams.DEFAULTS);
+            int games = Integer.parseInt(options.getOrDefault("games", "10000"));
+            openings = options.containsKey("openings")
+                    ? readOpenings(options.get("openings"))
+                    : randomOpenings((games + 1) / 2, Integer.parseInt(options.getOrDefault("randomPlies", "6")),
+                            Long.parseLong(options.getOrDefault("seed", "1")));
+            maxGames = Math.min(games, 2 * openings.size());
+            openingsLimitGames = maxGames < games;
+            threads = Integer.parseInt(options.getOrDefault("threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            maxPlies = Integer.parseInt(options.getOrDefault("maxPlies", "300"));
+            adjudicateScore = Integer.parseInt(options.getOrDefault("adjudicateScore", "100"));
+            adjudicatePlies = Integer.parseInt(options.getOrDefault("adjudicatePlies", "8"));
+            elo0 = Double.parseDouble(options.getOrDefault("elo0", "0"));
+            elo1 = Double.parseDouble(options.getOrDefault("elo1", "10"));
+            double alpha = Double.parseDouble(options.getOrDefault("alpha", "0.05"));
+            double beta = Double.parseDouble(options.getOrDefault("beta", "0.05"));
+            lowerBound = Math.log(beta / (1 - alpha));
+            upperBound = Math.log((1 - beta) / alpha);
+            recordFile = options.containsKey("record") ? Paths.get(options.get("record")) : null;
+        }
+
+        static void main(String[] args) {
+            try {
+                new Tournament(parseOptions(args)).run();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // duplicate lines are dropped, since replaying one would only repeat its games
+        private static List<List<String>> readOpenings(String file) throws IOException {
+            Set<List<String>> openings = new LinkedHashSet<>();
+            for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                openings.add(Arrays.asList(line.split("\\s+")));
+            }
+            if (openings.isEmpty()) throw new IOException("No openings in " + file);
+            return new ArrayList<>(openings);
+        }
+
+        // random legal lines ending in distinct positions that are still in play; fewer if the tries run out
+        private static List<List<String>> randomOpenings(int count, int plies, long seed) {
+            Random random = new Random(seed);
+            ChessGame game = new ChessGame(false, EvalParams.DEFAULTS);
+            Set<Long> seen = new HashSet<>();
+            List<List<String>> openings = new ArrayList<>();
+            for (int tries = 0; openings.size() < count && tries < 20 * count; tries++) {
+                game.resetPosition();
+                List<String> line = new ArrayList<>(plies);
+                for (int ply = 0; ply < plies; ply++) {
+                    List<Move> moves = game.generateAllMoves(game.whiteTurn);
+                    if (moves.isEmpty()) break;
+                    Move move = moves.get(random.nextInt(moves.size()));
+                    line.add(move.toString());
+                    game.playMove(move);
+                }
+                if (line.size() == plies && !game.generateAllMoves(game.whiteTurn).isEmpty()
+                        && seen.add(game.zobristKey())) {
+                    openings.add(line);
+                }
+            }
+            return openings;
+        }
+
+        void run() throws IOException, InterruptedException {
+            System.out.println(engineA + " vs " + engineB + ", " + openings.size() + " openings, "
+                    + threads + " threads");
+            if (openingsLimitGames) {
+                System.out.println("Openings run out after " + maxGames + " games; each is played once per colour");
+            }
+            startNanos = System.nanoTime();
+            if (recordFile != null) {
+                records = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordFile,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                pool.execute(this::playGames);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            if (records != null) records.close();
+
+            System.out.println("Final: " + summary());
+            double llr = llr();
+            if (llr >= upperBound) {
+                System.out.println("H1 accepted: " + engineA.name + " is stronger by at least " + elo1 + " Elo");
+            } else if (llr <= lowerBound) {
+                System.out.println("H0 accepted: " + engineA.name + " is not stronger by " + elo1 + " Elo");
+            } else {
+                System.out.println("Inconclusive after " + (wins + draws + losses) + " games");
+            }
+        }
+
+        // each worker reuses one headless game for all of its games
+        private void playGames() {
+            ChessGame game = new ChessGame(false, EvalParams.DEFAULTS);
+            Map<Long, Integer> repetitions = new HashMap<>();
+            int index;
+            while (!stopped.get() && (index = nextGame.getAndIncrement()) < maxGames) {
+                List<String> opening = openings.get(index / 2);
+                boolean engineAWhite = index % 2 == 0;
+                try {
+                    int whiteScore = playGame(game, engineAWhite ? engineA : engineB,
+                            engineAWhite ? engineB : engineA, opening, repetitions);
+                    record(engineAWhite ? whiteScore : 2 - whiteScore);
+                    if (records != null) {
+                        game.result = whiteScore == 2 ? "1-0" : whiteScore == 0 ? "0-1" : "1/2-1/2";
+                        synchronized (records) {
+                            game.writeRecord(records);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Game " + index + " aborted: " + e);
+                }
+            }
+        }
+
+        // returns white's score in half points: 2 win, 1 draw, 0 loss
+        private int playGame(ChessGame game, EngineConfig white, EngineConfig black,
+                             List<String> opening, Map<Long, Integer> repetitions) {
+            game.resetPosition();
+            repetitions.clear();
+            for (String text : opening) {
+                game.playMove(game.parseMove(text));
+            }
+
+            int decisivePlies = 0;
+            for (int ply = 0; ply < maxPlies; ply++) {
+                if (repetitions.merge(game.zobristKey(), 1, Integer::sum) >= 3) return 1;
+                if (game.isInsufficientMaterial()) return 1;
+                if (game.generateAllMoves(game.whiteTurn).isEmpty()) {
+                    if (!game.isInCheck(game.whiteTurn)) return 1;
+                    return game.whiteTurn ? 0 : 2;
+                }
+
+                EngineConfig engine = game.whiteTurn ? white : black;
+                game.evalParams = engine.params;
+                game.playMove(game.findBestMove(engine.depth));
+
+                // adjudicate with the default evaluation so both engines are judged alike
+                game.evalParams = EvalParams.DEFAULTS;
+                int score = game.evaluateBoard();
+                if (Math.abs(score) >= adjudicateScore) {
+                    if (++decisivePlies >= adjudicatePlies) return score > 0 ? 2 : 0;
+                } else {
+                    decisivePlies = 0;
+                }
+            }
+            return 1;
+        }
+
+        private synchronized void record(int score) {
+            if (score == 2) wins++;
+            else if (score == 1) draws++;
+            else losses++;
+
+            int games = wins + draws + losses;
+            double llr = llr();
+            if (llr >= upperBound || llr <= lowerBound) stopped.set(true);
+            if (games % 100 == 0 || stopped.get()) {
+                System.out.println(summary());
+            }
+        }
+
+        private synchronized String summary() {
+            int games = wins + draws + losses;
+            double minutes = (System.nanoTime() - startNanos) / 60e9;
+            double score = games == 0 ? 0.5 : (wins + draws / 2.0) / games;
+            double margin = games == 0 ? 0 : 1.96 * Math.sqrt(variance() / games);
+            return String.format("%d games (+%d =%d -%d), Elo %.1f [%.1f, %.1f], LLR %.2f [%.2f, %.2f], %.0f games/min",
+                    games, wins, draws, losses, elo(score), elo(score - margin), elo(score + margin),
+                    llr(), lowerBound, upperBound, games / Math.max(minutes, 1e-9));
+        }
+
+        // per-game variance of the score, counting a draw as half a point
+        private double variance() {
+            int games = wins + draws + losses;
+            double score = (wins + draws / 2.0) / games;
+            double squares = (wins + draws / 4.0) / games;
+            return squares - score * score;
+        }
+
+        // GSPRT log-likelihood ratio using the normal approximation of the trinomial model
+        private double llr() {
+            int games = wins + draws + losses;
+            if (games == 0) return 0;
+            double variance = variance();
+            if (variance <= 0) return 0;
+            double score = (wins + draws / 2.0) / games;
+            double s0 = expectedScore(elo0);
+            double s1 = expectedScore(elo1);
+            return (s1 - s0) * (2 * score - s0 - s1) / (2 * variance / games);
+        }
+
+        private static double expectedScore(double elo) {
+            return 1 / (1 + Math.pow(10, -elo / 400));
+        }
+
+        private static double elo(double score) {
+            if (score <= 0) return Double.NEGATIVE_INFINITY;
+            if (score >= 1) return Double.POSITIVE_INFINITY;
+            return -400 * Math.log10(1 / score - 1);
+        }
+    }
+
+    /**
+     * Texel-style tuner for the material values in EvalParams.
+     *
+     *   java ChessGame tune -data positions.epd -out tuned.properties -epochs 100
+     *
+     * Each data line is a FEN followed by the game result, written as "1-0",
+     * "1/2-1/2", "0-1" (EPD c9 style) or as [1.0], [0.5], [0.0]. Positions
+     * that are not quiet are skipped. The first pass writes a few bytes of
+     * features per position to a temporary file; every later pass streams
+     * that file in chunks scored in parallel, so the dataset never has to
+     * fit on the heap. The king value and check bonus are left as they are:
+     * quiet positions never contain a check.
+     */
+    private static class Tuner {
+        // material difference (white minus black) for pawn, rook, knight, bishop and queen
+        private static final int FEATURES = PieceType.KING.ordinal();
+        private static final int RECORD_BYTES = FEATURES + 1;
+        private static final Pattern RESULT = Pattern.compile("1/2-1/2|1-0|0-1|\\[(1\\.0|0\\.5|0\\.0)\\]");
+        private static final ThreadLocal<ChessGame> GAMES =
+                ThreadLocal.withInitial(() -> new ChessGame(false, EvalParams.DEFAULTS));
+
+        private final int chunkSize;
+
+        Tuner(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        static void main(String[] args) throws IOException {
+            Map<String, String> options = parseOptions(args);
+            if (!options.containsKey("data")) {
+                System.err.println("Usage: java ChessGame tune -data positions.epd [-out tuned.properties]"
+                        + " [-params initial.properties] [-epochs 100] [-rate 1.0] [-chunk 65536]");
+                return;
+            }
+            EvalParams initial = options.containsKey("params")
+                    ? EvalParams.load(Paths.get(options.get("params")))
+                    : EvalParams.DEFAULTS;
+            new Tuner(Integer.parseInt(options.getOrDefault("chunk", "65536"))).run(
+                    Paths.get(options.get("data")),
+                    Paths.get(options.getOrDefault("out", "tuned.properties")),
+                    initial,
+                    Integer.parseInt(options.getOrDefault("epochs", "100")),
+                    Double.parseDouble(options.getOrDefault("rate", "1.0")));
+        }
+
+        void run(Path data, Path out, EvalParams initial, int epochs, double rate) throws IOException {
+            Path features = Files.createTempFile("texel-features", ".bin");
+            try {
+                long positions = extractFeatures(data, features);
+                System.out.println(positions + " quiet positions");
+                if (positions == 0) return;
+
+                double[] params = new double[FEATURES];
+                for (int i = 0; i < FEATURES; i++) params[i] = initial.pieceValues[i];
+
+                double k = fitScale(features, params);
+                System.out.printf("K = %.4f, initial error %.6f%n", k, pass(features, params, k, null));
+
+                // Adam keeps the step size sensible whatever the scale of the data
+                double[] gradient = new double[FEATURES];
+                double[] m = new double[FEATURES];
+                double[] v = new double[FEATURES];
+                for (int epoch = 1; epoch <= epochs; epoch++) {
+                    double error = pass(features, params, k, gradient);
+                    for (int i = 0; i < FEATURES; i++) {
+                        m[i] = 0.9 * m[i] + 0.1 * gradient[i];
+                        v[i] = 0.999 * v[i] + 0.001 * gradient[i] * gradient[i];
+                        double mHat = m[i] / (1 - Math.pow(0.9, epoch));
+                        double vHat = v[i] / (1 - Math.pow(0.999, epoch));
+                        params[i] -= rate * mHat / (Math.sqrt(vHat) + 1e-12);
+                    }
+                    EvalParams tuned = toEvalParams(params, initial);
+                    tuned.store(out, "Texel tuning, epoch " + epoch + ", error " + error);
+                    System.out.printf("epoch %d error %.6f %s%n", epoch, error, Arrays.toString(tuned.pieceValues));
+                }
+            } finally {
+                Files.deleteIfExists(features);
+            }
+        }
+
+        private long extractFeatures(Path data, Path features) throws IOException {
+            long kept = 0;
+            try (BufferedReader reader = Files.newBufferedReader(data, StandardCharsets.UTF_8);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(features))) {
+                List<String> lines = new ArrayList<>(chunkSize);
+                String line;
+                do {
+                    line = reader.readLine();
+                    if (line != null) lines.add(line);
+                    if (lines.size() == chunkSize || (line == null && !lines.isEmpty())) {
+                        List<byte[]> records = lines.parallelStream()
+                                .map(Tuner::extract)
+                                .filter(Objects::nonNull)
+                                .collect(Collectors.toList());
+                        for (byte[] record : records) out.write(record);
+                        kept += records.size();
+                        lines.clear();
+                    }
+                } while (line != null);
+            }
+            return kept;
+        }
+
+        // null for unlabelled, malformed or non-quiet positions
+        private static byte[] extract(String line) {
+            Matcher matcher = RESULT.matcher(line);
+            if (!matcher.find()) return null;
+            
+            ChessGame game = GAMES.get();
+            try {
+                game.loadFen(line.substring(0, matcher.start()));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (!game.isQuietPosition()) return null;
+
+            String result = matcher.group();
+            byte[] record = new byte[RECORD_BYTES];
+            record[0] = (byte) (result.equals("1-0") || result.equals("[1.0]") ? 2
+                    : result.equals("0-1") || result.equals("[0.0]") ? 0 : 1);
+            for (int row = 0; row < BOARD_SIZE; row++) {
+                for (int col = 0; col < BOARD_SIZE; col++) {
+                    Piece piece = game.board[row][col];
+                    if (piece != null && piece.getType() != PieceType.KING) {
+                        record[1 + piece.getType().ordinal()] += piece.isWhite() ? 1 : -1;
+                    }
+                }
+            }
+            return record;
+        }
+
+        // golden-section search for the sigmoid scale that best fits the starting values
+        private double fitScale(Path features, double[] params) throws IOException {
+            double ratio = (Math.sqrt(5) - 1) / 2;
+            double low = 0.1, high = 100;
+            for (int i = 0; i < 30; i++) {
+                double a = high - ratio * (high - low);
+                double b = low + ratio * (high - low);
+                if (pass(features, params, a, null) < pass(features, params, b, null)) {
+                    high = b;
+                } else {
+                    low = a;
+                }
+            }
+            return (low + high) / 2;
+        }
+
+        /**
+         * Streams the feature file once and returns the mean squared error of
+         * sigmoid(k * eval) against the results, filling gradient if non-null.
+         */
+        private double pass(Path features, double[] params, double k, double[] gradient) throws IOException {
+            int parts = ForkJoinPool.commonPool().getParallelism() * 4;
+            double[] totals = new double[FEATURES + 1];
+            long count = 0;
+            // chunk is reused; each part only reads its own slice
+            byte[] chunk = new byte[chunkSize * RECORD_BYTES];
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(features), 1 << 16)) {
+                int read;
+                while ((read = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                    int records = read / RECORD_BYTES;
+                    double[] chunkTotals = IntStream.range(0, parts).parallel()
+                            .mapToObj(part -> score(chunk, records * part / parts, records * (part + 1) / parts, params, k))
+                            .reduce(new double[FEATURES + 1], Tuner::add);
+                    totals = add(totals, chunkTotals);
+                    count += records;
+                }
+            }
+            if (gradient != null) {
+                for (int i = 0; i < FEATURES; i++) gradient[i] = totals[i + 1] / count;
+            }
+            return totals[0] / count;
+        }
+
+        // {error sum, gradient sums...} over records [from, to) of the chunk
+        private static double[] score(byte[] chunk, int from, int to, double[] params, double k) {
+            double[] totals = new double[FEATURES + 1];
+            double scale = k * Math.log(10) / 400;
+            for (int record = from; record < to; record++) {
+                int offset = record * RECORD_BYTES;
+                double eval = 0;
+                for (int i = 0; i < FEATURES; i++) eval += chunk[offset + 1 + i] * params[i];
+                double predicted = 1 / (1 + Math.exp(-scale * eval));
+                double diff = chunk[offset] / 2.0 - predicted;
+                totals[0] += diff * diff;
+                double slope = -2 * diff * predicted * (1 - predicted) * scale;
+                for (int i = 0; i < FEATURES; i++) totals[i + 1] += slope * chunk[offset + 1 + i];
+            }
+            return totals;
+        }
+
+        private static double[] add(double[] a, double[] b) {
+            double[] sum = new double[a.length];
+            for (int i = 0; i < a.length; i++) sum[i] = a[i] + b[i];
+            return sum;
+        }
+
+        private static EvalParams toEvalParams(double[] params, EvalParams initial) {
+            int[] values = initial.pieceValues.clone();
+            for (int i = 0; i < FEATURES; i++) values[i] = (int) Math.round(params[i]);
+            return new EvalParams(values, initial.checkBonus);
+        }
+    }
+
+    /**
+     * Line-based TCP server hosting many games in one process.
+     *
+     *   java ChessGame server -port 5000 -engineThreads 4 [-analysisCache analysis.cache]
+     *                         [-maxMoveMillis 10000] [-maxDepth 6]
+     *
+     * Each connection is one session, served on a virtual thread when the
+     * JDK has them (21+) and on a pooled platform thread otherwise. Engine
+     * searches run on a fixed pool of platform threads fed by one FIFO
+     * queue; a session waits for its own search, so it never has more than
+     * one queued and cannot crowd others out. Whatever clock a client asks
+     * for, one search gets at most -maxMoveMillis, and games asking for a
+     * depth above -maxDepth are refused, so no session can hold an engine
+     * thread for long.
+     *
+     * Commands, one per line:
+     *   new [white|black] [baseMs] [incrementMs] [maxDepth]   start a game as that colour
+     *   move e2e4                                           play a move (e7e8q to promote)
+     *   fen                                                 print the position
+     *   stats                                               print engine queue metrics
+     *   quit
+     * Replies are "ok", "move <uci>", "result <pgn result> <reason>",
+     * "fen <fen>", "stats ..." or "error <message>".
+     */
+    private static class GameServer {
+        private final ThreadPoolExecutor enginePool;
+        private final ExecutorService sessions;
+        private final LongAdder searches = new LongAdder();
+        private final LongAdder queueNanos = new LongAdder();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+        private final AtomicInteger openSessions = new AtomicInteger();
+        private final AnalysisStore analysisStore;
+        private final long moveMillisLimit;
+        private final int depthLimit;
+
+        GameServer(int engineThreads, AnalysisStore analysisStore, long moveMillisLimit, int depthLimit) {
+            enginePool = new ThreadPoolExecutor(engineThreads, engineThreads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>());
+            sessions = newSessionExecutor();
+            this.analysisStore = analysisStore;
+            this.moveMillisLimit = moveMillisLimit;
+            this.depthLimit = depthLimit;
+        }
+
+        static void main(String[] args) throws IOException {
+            Map<String, String> options = parseOptions(args);
+            int port = Integer.parseInt(options.getOrDefault("port", "5000"));
+            int engineThreads = Integer.parseInt(options.getOrDefault("engineThreads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            AnalysisStore store = options.containsKey("analysisCache")
+                    ? AnalysisStore.openQuietly(Paths.get(options.get("analysisCache")))
+                    : null;
+            long moveMillisLimit = Long.parseLong(options.getOrDefault("maxMoveMillis", "10000"));
+            int depthLimit = Integer.parseInt(options.getOrDefault("maxDepth", "6"));
+            new GameServer(engineThreads, store, moveMillisLimit, depthLimit).serve(port);
+        }
+
+        private static ExecutorService newSessionExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        void serve(int port) throws IOException {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemonThreads("server-stats"));
+            reporter.scheduleAtFixedRate(() -> LOG.info(stats()), 1, 1, TimeUnit.MINUTES);
+
+            try (ServerSocket server = new ServerSocket(port)) {
+                LOG.info("Chess server listening on port " + server.getLocalPort());
+                while (true) {
+                    Socket socket = server.accept();
+                    sessions.execute(() -> handleConnection(socket));
+                }
+            }
+        }
+
+        private void handleConnection(Socket socket) {
+            openSessions.incrementAndGet();
+            try (Socket connection = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                Session session = new Session(out);
+                String line;
+                while ((line = in.readLine()) != null && session.handle(line.trim())) {
+                    // keep reading
+                }
+            } catch (IOException e) {
+                LOG.fine("Session ended: " + e);
+            } finally {
+                openSessions.decrementAndGet();
+            }
+        }
+
+        // runs on an engine thread; the queue wait is measured from submission to start and
+        // counts against the deadline, since the session's clock is running while it waits
+        private Move search(ChessGame game, int maxDepth, long deadlineNanos)
+                throws InterruptedException, ExecutionException {
+            long submitted = System.nanoTime();
+            Future<Move> result = enginePool.submit(() -> {
+                long started = System.nanoTime();
+                long waited = started - submitted;
+                searches.increment();
+                queueNanos.add(waited);
+                maxQueueNanos.accumulateAndGet(waited, Math::max);
+                return game.findBestMove(maxDepth, deadlineNanos);
+            });
+            return result.get();
+        }
+
+        String stats() {
+            long count = searches.sum();
+            return String.format("stats sessions %d searches %d queued %d queue_avg_ms %.2f queue_max_ms %.2f",
+                    openSessions.get(), count, enginePool.getQueue().size(),
+                    count == 0 ? 0 : queueNanos.sum() / 1e6 / count, maxQueueNanos.get() / 1e6);
+        }
+
+        private class Session {
+            private final PrintWriter out;
+            private ChessGame game;
+            private boolean engineWhite;
+            private int maxDepth;
+            private long incrementMillis;
+            private final long[] clockMillis = new long[2]; // white, black
+            private long turnStarted;
+
+            Session(PrintWriter out) {
+                this.out = out;
+                out.println("ok chess server");
+            }
+
+            // false ends the session
+            boolean handle(String line) {
+                String[] words = line.split("\\s+");
+                try {
+                    switch (words[0]) {
+                        case "new": newGame(words); break;
+                        case "move": humanMove(words); break;
+                        case "fen": out.println(game == null ? "error no game" : "fen " + game.toFen()); break;
+                        case "stats": out.println(stats()); break;
+                        case "quit": return false;
+                        case "": break;
+                        default: out.println("error unknown command " + words[0]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    out.println("error " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (ExecutionException e) {
+                    out.println("error engine failed: " + e.getCause());
+                }
+                return true;
+            }
+
+            private void newGame(String[] words) throws InterruptedException, ExecutionException {
+                boolean humanWhite = words.length > 1 && words[1].equals("white");
+                long baseMillis = words.length > 2 ? Long.parseLong(words[2]) : 300_000;
+                long increment = words.length > 3 ? Long.parseLong(words[3]) : 2_000;
+                int depth = words.length > 4 ? Integer.parseInt(words[4]) : Math.min(AI_DEPTH, depthLimit);
+                if (baseMillis <= 0 || increment < 0) throw new IllegalArgumentException("bad time control");
+                if (depth < 1 || depth > depthLimit) {
+                    throw new IllegalArgumentException("depth must be 1 to " + depthLimit);
+                }
+                incrementMillis = increment;
+                maxDepth = depth;
+                engineWhite = !humanWhite;
+                Arrays.fill(clockMillis, baseMillis);
+
+                if (game == null) {
+                    game = new ChessGame(false, EvalParams.DEFAULTS);
+                    game.analysisStore = analysisStore;
+                }
+                game.resetPosition();
+                out.println("ok");
+                turnStarted = System.nanoTime();
+                if (engineWhite) engineMove();
+            }
+
+            private void humanMove(String[] words) throws InterruptedException, ExecutionException {
+                if (game == null || game.gameOver) throw new IllegalArgumentException("no game in progress");
+                if (words.length < 2) throw new IllegalArgumentException("move needs a move");
+                Move move = game.parseMove(words[1]);
+                if (!chargeClock()) return;
+                game.playMove(move);
+                out.println("ok");
+                if (!checkGameEnd()) engineMove();
+            }
+
+            private void engineMove() throws InterruptedException, ExecutionException {
+                long remaining = clockMillis[game.whiteTurn ? 0 : 1];
+                long budget = Math.max(1, Math.min(moveMillisLimit, Math.min(remaining / 2, remaining / 30 + incrementMillis)));
+                Move move = search(game, maxDepth, turnStarted + budget * 1_000_000L);
+                if (!chargeClock()) return;
+                game.playMove(move);
+                out.println("move " + move);
+                checkGameEnd();
+            }
+
+            // charges the side to move for its thinking time; false if its flag fell
+            private boolean chargeClock() {
+                long now = System.nanoTime();
+                int side = game.whiteTurn ? 0 : 1;
+                clockMillis[side] -= (now - turnStarted) / 1_000_000;
+                turnStarted = now;
+                if (clockMillis[side] <= 0) {
+                    endGame(game.whiteTurn ? "0-1" : "1-0", "time");
+                    return false;
+                }
+                clockMillis[side] += incrementMillis;
+                return true;
+            }
+
+            private boolean checkGameEnd() {
+                if (game.generateAllMoves(game.whiteTurn).isEmpty()) {
+                    if (game.isInCheck(game.whiteTurn)) {
+                        endGame(game.whiteTurn ? "0-1" : "1-0", "checkmate");
+                    } else {
+                        endGame("1/2-1/2", "stalemate");
+                    }
+                } else if (game.isInsufficientMaterial()) {
+                    endGame("1/2-1/2", "insufficient material");
+                }
+                return game.gameOver;
+            }
+
+            private void endGame(String result, String reason) {
+                game.result = result;
+                game.gameOver = true;
+                out.println("result " + result + " " + reason);
+            }
+        }
+    }
+
+   
+    /**
+     * A position frozen into five longs: four hold the board at four bits a
+     * square (0 for empty, otherwise pieceIndex + 1, squares in row-major
+     * order), the fifth the side to move (bit 0), castling rights (bits 1-4),
+     * en passant square + 1 (bits 5-11), halfmove clock (bits 16-31) and
+     * fullmove number (bits 32-63). Restoring it writes 64 squares and a few
+     * fields, whatever the length of the game behind it.
+     */
+    private static final class Snapshot {
+        private static final Piece[] PIECES = new Piece[12];
+        static {
+            for (PieceType type : PieceType.values()) {
+                PIECES[type.ordinal()] = new Piece(type, true);
+                PIECES[type.ordinal() + 6] = new Piece(type, false);
+            }
+        }
+
+        private final long squares0, squares1, squares2, squares3;
+        final long state;
+
+        Snapshot(long squares0, long squares1, long squares2, long squares3, long state) {
+            this.squares0 = squares0;
+            this.squares1 = squares1;
+            this.squares2 = squares2;
+            this.squares3 = squares3;
+            this.state = state;
+        }
+
+        Piece pieceAt(int square) {
+            long squares;
+            switch (square >> 4) {
+                case 0: squares = squares0; break;
+                case 1: squares = squares1; break;
+                case 2: squares = squares2; break;
+                default: squares = squares3; break;
+            }
+            int code = (int) (squares >>> ((square & 15) * 4)) & 15;
+            return code == 0 ? null : PIECES[code - 1];
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Snapshot)) return false;
+            Snapshot other = (Snapshot) obj;
+            return squares0 == other.squares0 && squares1 == other.squares1
+                    && squares2 == other.squares2 && squares3 == other.squares3 && state == other.state;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = squares0;
+            hash = hash * 31 + squares1;
+            hash = hash * 31 + squares2;
+            hash = hash * 31 + squares3;
+            return Long.hashCode(hash * 31 + state);
+        }
+    }
+
+    /**
+     * Variations branching from one position. A node holds only the packed
+     * move that reached it, a link to its parent and the snapshot after the
+     * move, so lines share every node up to the point where they part, and
+     * any node goes back onto a board with restore(). Playing a move that is
+     * already in the tree returns the existing node.
+     */
+    private static class GameTree {
+        final Node root;
+        private final ChessGame scratch;
+
+        GameTree(ChessGame game) {
+            scratch = game.copyPosition();
+            root = new Node(null, -1, game.snapshot());
+        }
+
+        synchronized Node play(Node node, Move move) {
+            int packed = packMove(move);
+            Node child = node.child(packed);
+            if (child != null) return child;
+            
+            scratch.restore(node.position);
+            scratch.playMove(move);
+            scratch.moveHistory.clear();
+            child = new Node(node, packed, scratch.snapshot());
+            node.addChild(child);
+            return child;
+        }
+
+        static final class Node {
+            final Node parent;
+            final Snapshot position;
+            private final short move;
+            private List<Node> children;
+
+            Node(Node parent, int move, Snapshot position) {
+                this.parent = parent;
+                this.move = (short) move;
+                this.position = position;
+            }
+
+            // null at the root
+            Move move() {
+                return parent == null ? null : unpackMove(move & 0xFFFF);
+            }
+
+            // the moves from the root to this node
+            List<Move> line() {
+                LinkedList<Move> line = new LinkedList<>();
+                for (Node node = this; node.parent != null; node = node.parent) {
+                    line.addFirst(node.move());
+                }
+                return line;
+            }
+
+            synchronized List<Node> children() {
+                return children == null ? Collections.<Node>emptyList() : new ArrayList<>(children);
+            }
+
+            private synchronized Node child(int packed) {
+                if (children == null) return null;
+                for (Node child : children) {
+                    if ((child.move & 0xFFFF) == packed) return child;
+                }
+                return null;
+            }
+
+            private synchronized void addChild(Node child) {
+                if (children == null) children = new ArrayList<>(2);
+                children.add(child);
+            }
+        }
+    }
+
+    private static class Piece {
+        private PieceType type;
+        private boolean white;
+        
+        public Piece(PieceType type, boolean white) {
+            this.type = type;
+            this.white = white;
+        }
+        
+        public PieceType getType() { return type; }
+        public boolean isWhite() { return white; }
+    }
+
+    private enum PieceType {
+        PAWN, ROOK, KNIGHT, BISHOP, QUEEN, KING
+    }
 
     private static class Position {
         int row, col;
@@ -917,10 +3440,21 @@ public class ChessGame {
 
     private static class Move {
         Position from, to;
+        PieceType promotion;
         
         public Move(Position from, Position to) {
+            this(from, to, null);
+        }
+        
+        public Move(Position from, Position to, PieceType promotion) {
             this.from = from;
             this.to = to;
+            this.promotion = promotion;
+        }
+        
+        @Override
+        public String toString() {
+            return squareName(from) + squareName(to) + (promotion != null ? String.valueOf(pieceLetter(promotion)) : "");
         }
     }
 }
\ No newline at end of file